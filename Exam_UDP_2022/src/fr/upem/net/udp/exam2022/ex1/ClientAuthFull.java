@@ -10,8 +10,12 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -42,6 +46,8 @@ public class ClientAuthFull {
     }
   }
 
+  private record Timer(long deadline, int index) { }
+
   private record Response(long id, String body) {
     public Response {
       if (id < 0) { throw new IllegalArgumentException(); }
@@ -55,7 +61,7 @@ public class ClientAuthFull {
   private final DatagramChannel dc;
 
   public static void usage() {
-    System.out.println("Usage : ClientAuth in-filename out-filename host port ");
+    System.out.println("Usage : ClientAuth in-filename out-filename host port [window]");
   }
 
   public ClientAuthFull(String inFilename, String outFilename, InetSocketAddress server) throws IOException {
@@ -74,7 +80,7 @@ public class ClientAuthFull {
     return str;
   }
 
-  private void listenerThreadRun() {
+  private void listenerThreadRun(BlockingQueue<Response> queue) {
     var bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
     for (;;) {
       try {
@@ -108,7 +114,7 @@ public class ClientAuthFull {
         }
 
         logger.info("Received response for username " + username + ". Adding to queue");
-        synchronousQueue.put(new Response(receiveId, ";" + username + ";" + strLatinFromBuf(bb, passwdSize)));
+        queue.put(new Response(receiveId, ";" + username + ";" + strLatinFromBuf(bb, passwdSize)));
       } catch (InterruptedException | AsynchronousCloseException e) {
         logger.info("DatagramChannel closed, exiting receiver...");
         return;
@@ -126,21 +132,12 @@ public class ClientAuthFull {
       var answers = new ArrayList<String>();
       var exchangeId = 0L;
 
-      Thread.ofPlatform().start(this::listenerThreadRun);
+      Thread.ofPlatform().start(() -> listenerThreadRun(synchronousQueue));
 
       var byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
       for (var user : users) {
         // Send
-        byteBuffer.clear();
-        byteBuffer.putLong(exchangeId);
-        var fname = UTF8.encode(user.firstName);
-        var lname = UTF8.encode(user.lastName);
-        byteBuffer.putInt(fname.remaining());
-        byteBuffer.put(fname);
-        byteBuffer.putInt(lname.remaining());
-        byteBuffer.put(lname);
-
-        byteBuffer.flip();
+        encodeRequest(byteBuffer, exchangeId, user);
         logger.info("Sending request to " + server + " for user: " + user.firstName() + " " + user.lastName());
         dc.send(byteBuffer, server);
 
@@ -171,8 +168,84 @@ public class ClientAuthFull {
     }
   }
 
+  private ByteBuffer encodeRequest(ByteBuffer byteBuffer, long exchangeId, User user) {
+    byteBuffer.clear();
+    byteBuffer.putLong(exchangeId);
+    var fname = UTF8.encode(user.firstName);
+    var lname = UTF8.encode(user.lastName);
+    byteBuffer.putInt(fname.remaining());
+    byteBuffer.put(fname);
+    byteBuffer.putInt(lname.remaining());
+    byteBuffer.put(lname);
+    return byteBuffer.flip();
+  }
+
+  /**
+   * Same as launch but up to window requests are in flight: the id of a
+   * request is the index of its user, so a response is matched in constant
+   * time, and each request is sent again TIMEOUT ms after its last send until
+   * it is answered. The answers are written in the order of the input file.
+   */
+  public void launchBurst(int window) throws IOException, InterruptedException {
+    if (window < 1) {
+      throw new IllegalArgumentException();
+    }
+    try {
+      var lines = Files.readAllLines(Path.of(inFilename), UTF8);
+      var users = lines.stream().map(User::fromLine).toList();
+      var answers = new String[users.size()];
+      var responses = new LinkedBlockingQueue<Response>();
+      // requests in flight by deadline, all the timers have the same duration
+      var timers = new ArrayDeque<Timer>();
+      var timeout = TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+      var next = 0;
+      var inFlight = 0;
+      var answered = 0;
+
+      Thread.ofPlatform().start(() -> listenerThreadRun(responses));
+
+      var byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      while (answered < users.size()) {
+        var now = System.nanoTime();
+        for (; inFlight < window && next < users.size(); next++, inFlight++) {
+          dc.send(encodeRequest(byteBuffer, next, users.get(next)), server);
+          timers.add(new Timer(now + timeout, next));
+        }
+
+        for (Timer timer; (timer = timers.peek()) != null && timer.deadline - now <= 0; ) {
+          timers.poll();
+          if (answers[timer.index] != null) {
+            continue;
+          }
+          var user = users.get(timer.index);
+          logger.info("No answer retrieved for " + user.firstName() + " " + user.lastName() + ", sending again (id " + timer.index + ")...");
+          dc.send(encodeRequest(byteBuffer, timer.index, user), server);
+          timers.add(new Timer(now + timeout, timer.index));
+        }
+
+        var head = timers.peek();
+        var response = head == null ? responses.take()
+            : responses.poll(head.deadline - now, TimeUnit.NANOSECONDS);
+        for (; response != null; response = responses.poll()) {
+          if (response.id() >= users.size() || answers[(int) response.id()] != null) {
+            logger.info("Invalid or duplicate id, dropping...");
+            continue;
+          }
+          var user = users.get((int) response.id());
+          answers[(int) response.id()] = user.firstName() + ";" + user.lastName() + response.body();
+          answered++;
+          inFlight--;
+        }
+      }
+
+      Files.write(Paths.get(outFilename), Arrays.asList(answers), UTF8, CREATE, WRITE, TRUNCATE_EXISTING);
+    } finally {
+      dc.close();
+    }
+  }
+
   public static void main(String[] args) throws IOException, InterruptedException {
-    if (args.length != 4) {
+    if (args.length != 4 && args.length != 5) {
       usage();
       return;
     }
@@ -182,6 +255,11 @@ public class ClientAuthFull {
     var server = new InetSocketAddress(args[2], Integer.parseInt(args[3]));
 
     // Create client with the parameters and launch it
-    new ClientAuthFull(inFilename, outFilename, server).launch();
+    var client = new ClientAuthFull(inFilename, outFilename, server);
+    if (args.length == 5) {
+      client.launchBurst(Integer.parseInt(args[4]));
+    } else {
+      client.launch();
+    }
   }
 }
\ No newline at end of file
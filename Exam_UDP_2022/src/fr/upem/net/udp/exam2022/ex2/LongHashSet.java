@@ -0,0 +1,112 @@
+package fr.upem.net.udp.exam2022.ex2;
+
+/**
+ * Set of longs with open addressing and linear probing, the values are stored
+ * without boxing in one array. 0 marks the empty slots, so whether 0 itself is
+ * in the set is kept aside.
+ *
+ * The table doubles when it is half full, but its values are moved to the new
+ * table a few slots per add rather than all at once: with millions of values a
+ * full rehash stalls one add for a long time. While they are moved, the values
+ * are looked up in both tables.
+ */
+class LongHashSet {
+  private static final int INITIAL_CAPACITY = 16; // must be a power of 2
+  private static final long PHI = 0x9E3779B97F4A7C15L; // golden ratio, spreads the bits of the values
+  private static final int MOVES_PER_ADD = 8; // slots of old moved to table by each add
+
+  private long[] table = new long[INITIAL_CAPACITY];
+  private int shift = Long.SIZE - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+  private long[] old; // previous table, not yet fully moved to table, or null
+  private int moved; // slots of old already moved to table
+  private int size; // of table and old, without 0
+  private boolean containsZero;
+
+  private static int index(long value, int shift) {
+    return (int) ((value * PHI) >>> shift);
+  }
+
+  private static boolean find(long[] table, int shift, long value) {
+    var mask = table.length - 1;
+    for (var i = index(value, shift); ; i = (i + 1) & mask) {
+      var current = table[i];
+      if (current == value) {
+        return true;
+      }
+      if (current == 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Puts value, known to be absent, in table.
+   */
+  private static void insert(long[] table, int shift, long value) {
+    var mask = table.length - 1;
+    var i = index(value, shift);
+    while (table[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    table[i] = value;
+  }
+
+  /**
+   * @return true if value was not already in the set
+   */
+  boolean add(long value) {
+    if (value == 0) {
+      var added = !containsZero;
+      containsZero = true;
+      return added;
+    }
+    if (old != null) {
+      moveSome();
+    }
+    // old is never written, it still holds the values not moved to table yet
+    if (find(table, shift, value) || (old != null && find(old, shift + 1, value))) {
+      return false;
+    }
+    insert(table, shift, value);
+    if (++size > table.length / 2) {
+      grow();
+    }
+    return true;
+  }
+
+  boolean contains(long value) {
+    if (value == 0) {
+      return containsZero;
+    }
+    return find(table, shift, value) || (old != null && find(old, shift + 1, value));
+  }
+
+  int size() {
+    return size + (containsZero ? 1 : 0);
+  }
+
+  /**
+   * Starts moving the values to a table twice as big. table holds a quarter
+   * of its capacity, the moves end after old.length / MOVES_PER_ADD adds,
+   * long before it is half full again.
+   */
+  private void grow() {
+    old = table;
+    moved = 0;
+    table = new long[old.length * 2];
+    shift--;
+  }
+
+  private void moveSome() {
+    var end = Math.min(old.length, moved + MOVES_PER_ADD);
+    for (; moved < end; moved++) {
+      var value = old[moved];
+      if (value != 0) {
+        insert(table, shift, value);
+      }
+    }
+    if (moved == old.length) {
+      old = null;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package fr.upem.net.udp.exam2022.ex2;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the state update of ServerPrimer for one discovered
+ * prime (add it to the discovered values, then compute their average) as the
+ * set grows, before and after the averages were maintained incrementally:
+ * a HashSet of Long streamed for every average, and a LongHashSet with a
+ * running sum. Random values stand for the primes, only the set matters.
+ *
+ * The HashSet of 4 millions Long needs about 300 MB and the streams make a lot
+ * of garbage, run with -Xmx2g.
+ */
+public class LongHashSetBench {
+  private static final int[] SIZES = { 1_000, 10_000, 100_000, 1_000_000, 4_000_000 };
+  private static final long MAX_DURATION = TimeUnit.MILLISECONDS.toNanos(500); // per measure
+
+  private static long checksum; // keeps the JIT from removing the averages
+  private static long discoveredSum; // of the values of the LongHashSet
+
+  private static long streamedUpdate(HashSet<Long> discovered, long value) {
+    discovered.add(value);
+    return discovered.stream().mapToLong(Long::longValue).sum() / discovered.size();
+  }
+
+  private static long incrementalUpdate(LongHashSet discovered, long value) {
+    if (discovered.add(value)) {
+      discoveredSum += value;
+    }
+    return discoveredSum / discovered.size();
+  }
+
+  private record Result(double mean, long max) { }
+
+  /**
+   * Runs updates until the set has grown by 10% or for MAX_DURATION, so that
+   * the set keeps about its size during the measure. Each update is timed, so
+   * the max shows the update that pays for a resize of the set or for a GC.
+   */
+  private static Result measure(Random random, boolean incremental, HashSet<Long> boxed, LongHashSet primitive,
+      int size) {
+    var maxCount = Math.max(100, size / 10);
+    var count = 0L;
+    var max = 0L;
+    var start = System.nanoTime();
+    var last = start;
+    do {
+      var value = random.nextLong();
+      checksum += incremental ? incrementalUpdate(primitive, value) : streamedUpdate(boxed, value);
+      count++;
+      var now = System.nanoTime();
+      max = Math.max(max, now - last);
+      last = now;
+    } while (last - start < MAX_DURATION && count < maxCount);
+    return new Result((double) (last - start) / count, max);
+  }
+
+  private static String format(double nanos) {
+    if (nanos >= 1_000_000) {
+      return String.format("%.1f ms", nanos / 1_000_000);
+    }
+    if (nanos >= 1_000) {
+      return String.format("%.1f us", nanos / 1_000);
+    }
+    return String.format("%.0f ns", nanos);
+  }
+
+  public static void main(String[] args) {
+    var random = new Random(0);
+    var after = new Result[SIZES.length];
+    var primitive = new LongHashSet();
+    for (var i = 0; i < SIZES.length; i++) {
+      while (primitive.size() < SIZES[i]) {
+        incrementalUpdate(primitive, random.nextLong());
+      }
+      after[i] = measure(random, true, null, primitive, SIZES[i]);
+    }
+    // the boxed set is measured once the primitive set can be collected, the
+    // copies of the millions of Long of the boxed set by the GC would show
+    // in the max of the primitive set otherwise
+    primitive = null;
+    var before = new Result[SIZES.length];
+    var boxed = new HashSet<Long>();
+    for (var i = 0; i < SIZES.length; i++) {
+      while (boxed.size() < SIZES[i]) {
+        boxed.add(random.nextLong());
+      }
+      before[i] = measure(random, false, boxed, null, SIZES[i]);
+    }
+
+    System.out.println("primes      before (HashSet + stream)   after (LongHashSet + sum)");
+    System.out.println("            mean        max             mean        max");
+    for (var i = 0; i < SIZES.length; i++) {
+      System.out.printf("%-11s %-11s %-15s %-11s %s%n", String.format("%,d", SIZES[i]), format(before[i].mean),
+          format(before[i].max), format(after[i].mean), format(after[i].max));
+    }
+    System.out.println("checksum " + checksum);
+  }
+}
@@ -7,54 +7,182 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * The primality tests are run by a pool of workers so that the receive loop
+ * never waits for them: the loop only answers directly the values whose
+ * verdict is in the cache. The workers update the shared state under the lock
+ * of the server and send the answers on the same DatagramChannel.
+ */
 public class ServerPrimer {
   private static final int BUFSIZ_IN = Long.BYTES * 3;
+  private static final int CACHE_SIZE = 65_536; // verdicts of the most recently tested values
+  private static final int MAX_PENDING = 1_024; // values waiting for a worker, the next ones are dropped
+  private static final int MAX_USERS = 100_000; // the least recently seen users are forgotten beyond
+  private static final long USER_TTL = TimeUnit.MINUTES.toNanos(10); // users not seen for USER_TTL are forgotten
   private final DatagramChannel dc;
   private final Logger logger = Logger.getLogger(ServerPrimer.class.getName());
-  private final Map<InetSocketAddress, UserValues> values = new HashMap<>();
-  private final Set<Long> discovered = new HashSet<>();
+  private final Object lock = new Object();
+  // users that discovered at least one prime, by last time seen, guarded by lock;
+  // a user costs about 180 bytes, mostly its InetSocketAddress (with its holder
+  // and InetAddress) and the entry of the map, so MAX_USERS users take about 18 MB
+  private final LinkedHashMap<InetSocketAddress, UserValues> values = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, UserValues> eldest) {
+      return size() > MAX_USERS;
+    }
+  };
+  private final LongHashSet discovered = new LongHashSet(); // guarded by lock
+  private long discoveredSum; // guarded by lock, wraps around as the sum of a LongStream does
+  private final LinkedHashMap<Long, Boolean> verdicts = new LinkedHashMap<>(16, 0.75f, true) { // guarded by lock
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+      return size() > CACHE_SIZE;
+    }
+  };
+  private final ThreadPoolExecutor workers;
 
   public ServerPrimer(int port) throws IOException {
     dc = DatagramChannel.open();
     dc.bind(new InetSocketAddress(port));
+    var nbWorkers = Runtime.getRuntime().availableProcessors();
+    workers = new ThreadPoolExecutor(nbWorkers, nbWorkers, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(MAX_PENDING));
     System.out.println("ServerPrimer started on port " + port);
   }
 
   private static class UserValues {
-    private final Set<Long> values = new HashSet<>();
-    private final Set<Long> discoveredValues = new HashSet<>();
-
-    public void addValue(long value) {
-      values.add(value);
-    }
+    // a value is only discovered once, so the discoveries of a user need no set
+    private long discoveredSum;
+    private int discoveredCount;
+    private long lastSeen;
 
     public void addDiscoveredValue(long value) {
-      discoveredValues.add(value);
+      discoveredSum += value;
+      discoveredCount++;
     }
 
     public long avgDiscoveries() {
-      return avg(discoveredValues);
+      return avg(discoveredSum, discoveredCount);
     }
   }
 
-  private static boolean isPrime(long n) {
-    if (n <= 1)
+  private static final long[] SMALL_PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37 };
+  // with these bases, Miller-Rabin is exact for all n < 2^64 (Jim Sinclair)
+  private static final long[] BASES = { 2, 325, 9375, 28178, 450775, 9780504, 1795265022 };
+
+  /**
+   * Deterministic Miller-Rabin test, the modular products are computed in
+   * Montgomery form so that no 128-bit division is needed.
+   */
+  static boolean isPrime(long n) {
+    if (n < 2) {
+      return false;
+    }
+    for (var p : SMALL_PRIMES) {
+      if (n % p == 0) {
+        return n == p;
+      }
+    }
+    if (n < 41 * 41) {
+      return true;
+    }
+
+    var montgomery = new Montgomery(n);
+    var d = n - 1;
+    var s = Long.numberOfTrailingZeros(d);
+    d >>= s;
+    var one = montgomery.one;
+    var minusOne = n - one;
+    nextBase:
+    for (var base : BASES) {
+      var a = base % n;
+      if (a == 0) {
+        continue;
+      }
+      var x = montgomery.pow(montgomery.toMontgomery(a), d);
+      if (x == one || x == minusOne) {
+        continue;
+      }
+      for (var i = 1; i < s; i++) {
+        x = montgomery.multiply(x, x);
+        if (x == minusOne) {
+          continue nextBase;
+        }
+      }
       return false;
-    for (int i = 2; i <= Math.sqrt(n); i++) {
-      if (n % i == 0)
-        return false;
     }
     return true;
   }
 
-  private static long avg(Set<Long> values) {
-    if (values.isEmpty()) {
+  /**
+   * Arithmetic modulo an odd n < 2^63 in Montgomery form, with R = 2^64.
+   */
+  private static class Montgomery {
+    private final long n;
+    private final long nPrime; // -n^-1 mod 2^64
+    private final long one; // R mod n
+    private final long r2; // R^2 mod n
+
+    Montgomery(long n) {
+      this.n = n;
+      var inverse = n; // correct on 3 bits since n * n = 1 mod 8, each step doubles them
+      for (var i = 0; i < 5; i++) {
+        inverse *= 2 - n * inverse;
+      }
+      this.nPrime = -inverse;
+      this.one = Long.remainderUnsigned(-n, n);
+      var r = one;
+      for (var i = 0; i < Long.SIZE; i++) {
+        r <<= 1; // r < n < 2^63 so no bit is lost
+        if (r >= n || r < 0) {
+          r -= n;
+        }
+      }
+      this.r2 = r;
+    }
+
+    /**
+     * @return (hi * 2^64 + lo) / R mod n, for hi < n
+     */
+    private long reduce(long hi, long lo) {
+      var m = lo * nPrime;
+      var carry = lo != 0 ? 1 : 0; // lo + m * n = 0 mod 2^64
+      var result = hi + Math.unsignedMultiplyHigh(m, n) + carry;
+      return result >= n || result < 0 ? result - n : result;
+    }
+
+    long multiply(long a, long b) {
+      return reduce(Math.unsignedMultiplyHigh(a, b), a * b);
+    }
+
+    long toMontgomery(long a) {
+      return multiply(a, r2);
+    }
+
+    long pow(long a, long exponent) {
+      var result = one;
+      for (; exponent > 0; exponent >>= 1) {
+        if ((exponent & 1) != 0) {
+          result = multiply(result, a);
+        }
+        a = multiply(a, a);
+      }
+      return result;
+    }
+  }
+
+  private static long avg(long sum, int count) {
+    if (count == 0) {
       return 0;
     }
 
-    return values.stream().mapToLong(Long::longValue).sum() / values.size();
+    return sum / count;
   }
 
   public void serve() throws IOException {
@@ -73,30 +201,88 @@ public class ServerPrimer {
         var value = buffer.getLong();
         logger.info("Value (L): " + value);
 
-        if (isPrime(value)) {
-          logger.info("Value " + value + " sent by " + dst + " is prime.");
-          values.computeIfAbsent(dst, k -> new UserValues()).addValue(value);
-
-          if (!discovered.contains(value)) {
-            logger.info("New prime value discovered!");
-            discovered.add(value);
-            values.computeIfAbsent(dst, k -> new UserValues()).addDiscoveredValue(value);
-          }
+        Boolean verdict;
+        synchronized (lock) {
+          verdict = verdicts.get(value);
+        }
+        if (verdict != null) {
+          answer(buffer, dst, value, verdict);
+          continue;
+        }
+        try {
+          workers.execute(() -> {
+            var prime = isPrime(value);
+            synchronized (lock) {
+              verdicts.put(value, prime);
+            }
+            try {
+              answer(ByteBuffer.allocate(BUFSIZ_IN), dst, value, prime);
+            } catch (IOException e) {
+              logger.warning("Could not send the answer to " + dst + ": " + e.getMessage());
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          logger.warning("Too many pending values, dropping " + value + " from " + dst);
         }
-
-        buffer.clear();
-        buffer.putLong(value);
-        buffer.putLong(values.computeIfAbsent(dst, k -> new UserValues()).avgDiscoveries());
-        buffer.putLong(avg(discovered));
-        buffer.flip();
-        logger.info("Sending values to " + dst);
-        dc.send(buffer, dst);
       }
     } finally {
+      workers.shutdownNow();
       dc.close();
     }
   }
 
+  /**
+   * Forgets the users not seen for USER_TTL, they are at the head of values.
+   */
+  private void expireUsers(long now) {
+    for (var iterator = values.values().iterator(); iterator.hasNext(); ) {
+      if (now - iterator.next().lastSeen < USER_TTL) {
+        return;
+      }
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Records the verdict of the value sent by dst and sends it the answer,
+   * buffer is only used by the calling thread.
+   */
+  private void answer(ByteBuffer buffer, InetSocketAddress dst, long value, boolean prime) throws IOException {
+    long userAverage;
+    long average;
+    synchronized (lock) {
+      var now = System.nanoTime();
+      expireUsers(now);
+      var user = values.get(dst);
+      if (prime) {
+        logger.info("Value " + value + " sent by " + dst + " is prime.");
+
+        if (discovered.add(value)) {
+          logger.info("New prime value discovered!");
+          discoveredSum += value;
+          if (user == null) {
+            user = new UserValues();
+            values.put(dst, user);
+          }
+          user.addDiscoveredValue(value);
+        }
+      }
+      if (user != null) {
+        user.lastSeen = now;
+      }
+      userAverage = user == null ? 0 : user.avgDiscoveries();
+      average = avg(discoveredSum, discovered.size());
+    }
+
+    buffer.clear();
+    buffer.putLong(value);
+    buffer.putLong(userAverage);
+    buffer.putLong(average);
+    buffer.flip();
+    logger.info("Sending values to " + dst);
+    dc.send(buffer, dst);
+  }
+
   public static void usage() {
     System.out.println("Usage : ServerPrimer port");
   }
@@ -7,17 +7,59 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.logging.Logger;
 
+/**
+ * Echo server with repetitions: a datagram (int count + content) is answered
+ * by count datagrams holding the content.
+ *
+ * The requests are queued per client as jobs and the clients with pending
+ * jobs are served in turn, one repetition each, so a client asking for many
+ * repetitions does not delay the others. The server keeps reading while the
+ * repetitions are sent, and sends as many as the socket accepts on each
+ * wakeup. The number of jobs and of repetitions pending are bounded, in
+ * total and per client, the requests beyond are dropped.
+ */
 public class ServerEchoRepeat {
   private static final Logger logger = Logger.getLogger(ServerEchoRepeat.class.getName());
   private static final int BUFFER_SIZE = 1020 + Integer.BYTES;
+  private static final int MAX_JOBS = 10_000;
+  private static final int MAX_JOBS_PER_CLIENT = 16;
+  private static final long MAX_PENDING_REPEATS = 100_000_000;
+  private static final long MAX_PENDING_REPEATS_PER_CLIENT = 1_000_000; // so that one client cannot fill the global bound
+  private static final int MAX_BATCH = 4_096; // datagrams sent per wakeup, so that reads are not delayed
   private final DatagramChannel dc;
   private final Selector selector;
+  private final SelectionKey key;
   private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-  private InetSocketAddress sender;
   private int port;
-  private int counter; // = 0
+
+  private final HashMap<InetSocketAddress, Client> clients = new HashMap<>(); // with pending jobs
+  private final ArrayDeque<Client> turns = new ArrayDeque<>(); // same clients, in the order they are served
+  private int jobs;
+  private long pendingRepeats;
+
+  private static class Job {
+    private final ByteBuffer content;
+    private int left; // repetitions to send
+
+    private Job(ByteBuffer content, int left) {
+      this.content = content;
+      this.left = left;
+    }
+  }
+
+  private static class Client {
+    private final InetSocketAddress address;
+    private final ArrayDeque<Job> jobs = new ArrayDeque<>();
+    private long pendingRepeats;
+
+    private Client(InetSocketAddress address) {
+      this.address = address;
+    }
+  }
 
   public ServerEchoRepeat(int port) throws IOException {
     this.port = port;
@@ -25,7 +67,7 @@ public class ServerEchoRepeat {
     dc = DatagramChannel.open();
     dc.bind(new InetSocketAddress(port));
     dc.configureBlocking(false);
-    dc.register(selector, SelectionKey.OP_READ);
+    key = dc.register(selector, SelectionKey.OP_READ);
   }
 
   public void serve() throws IOException {
@@ -36,16 +78,17 @@ public class ServerEchoRepeat {
       } catch (UncheckedIOException tunnel) {
         throw tunnel.getCause();
       }
+      key.interestOps(turns.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
     }
   }
 
   private void treatKey(SelectionKey key) {
     try {
       if (key.isValid() && key.isWritable()) {
-        doWrite(key);
+        doWrite();
       }
       if (key.isValid() && key.isReadable()) {
-        doRead(key);
+        doRead();
       }
     } catch (IOException e) {
       logger.severe("IOException occurred");
@@ -53,36 +96,75 @@ public class ServerEchoRepeat {
     }
   }
 
-  private void doRead(SelectionKey key) throws IOException {
-    buffer.clear();
-    sender = (InetSocketAddress) dc.receive(buffer);
-    if (sender == null) {
-      logger.warning("No packet received (No SocketAddress).");
-      return;
-    }
-    buffer.flip();
-    logger.info("Received " + buffer.remaining() + " bytes from " + sender);
+  private void doRead() throws IOException {
+    for (;;) {
+      buffer.clear();
+      var sender = (InetSocketAddress) dc.receive(buffer);
+      if (sender == null) {
+        return;
+      }
+      buffer.flip();
+      logger.fine(() -> "Received " + buffer.remaining() + " bytes from " + sender);
 
-    if (buffer.remaining() < Integer.BYTES) {
-      logger.warning("Invalid packet format, dropping...");
-      return;
+      if (buffer.remaining() < Integer.BYTES) {
+        logger.warning("Invalid packet format, dropping...");
+        continue;
+      }
+      var counter = buffer.getInt();
+      if (counter < 1) {
+        logger.warning("Invalid number of repetitions, dropping...");
+        continue;
+      }
+      var client = clients.get(sender);
+      var clientRepeats = client == null ? 0 : client.pendingRepeats;
+      if (jobs >= MAX_JOBS || pendingRepeats + counter > MAX_PENDING_REPEATS
+          || clientRepeats + counter > MAX_PENDING_REPEATS_PER_CLIENT
+          || client != null && client.jobs.size() >= MAX_JOBS_PER_CLIENT) {
+        logger.warning("Too many repetitions pending, dropping...");
+        continue;
+      }
+      logger.fine(() -> counter + " repetitions.");
+
+      if (client == null) {
+        client = new Client(sender);
+        clients.put(sender, client);
+        turns.add(client);
+      }
+      client.jobs.add(new Job(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip(), counter));
+      jobs++;
+      pendingRepeats += counter;
+      client.pendingRepeats += counter;
     }
-    counter = buffer.getInt();
-    logger.info(counter + " repetitions.");
-    key.interestOps(SelectionKey.OP_WRITE);
   }
 
-  private void doWrite(SelectionKey key) throws IOException {
-    dc.send(buffer, sender);
-    if (buffer.hasRemaining()) {
-      logger.warning("Packet could not be send.");
-      return;
-    }
+  /**
+   * Sends the next repetition of each client in turn until the socket is
+   * full or MAX_BATCH datagrams have been sent.
+   */
+  private void doWrite() throws IOException {
+    for (var i = 0; i < MAX_BATCH && !turns.isEmpty(); i++) {
+      var client = turns.peek();
+      var job = client.jobs.peek();
+      var content = job.content.rewind();
+      var empty = !content.hasRemaining();
+      if (dc.send(content, client.address) == 0 && !empty) {
+        return; // the socket is full, the repetition is sent on the next wakeup
+      }
+      // send also returns 0 for an empty datagram sent, so an empty repetition
+      // may be lost when the socket is full, as any datagram on the network
 
-    buffer.flip();
-    buffer.position(Integer.BYTES);
-    if (--counter < 1) {
-      key.interestOps(SelectionKey.OP_READ);
+      turns.poll();
+      pendingRepeats--;
+      client.pendingRepeats--;
+      if (--job.left == 0) {
+        client.jobs.poll();
+        jobs--;
+        if (client.jobs.isEmpty()) {
+          clients.remove(client.address);
+          continue;
+        }
+      }
+      turns.add(client);
     }
   }
 
@@ -97,4 +179,4 @@ public class ServerEchoRepeat {
     }
     new ServerEchoRepeat(Integer.parseInt(args[0])).serve();
   }
-}
\ No newline at end of file
+}
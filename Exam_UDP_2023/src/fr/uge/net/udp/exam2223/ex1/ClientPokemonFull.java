@@ -3,18 +3,26 @@ package fr.uge.net.udp.exam2223.ex1;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -52,8 +60,10 @@ public class ClientPokemonFull {
     }
   }
 
+  private record Timer(long deadline, int index) { }
+
   public static void usage() {
-    System.out.println("Usage : ClientPokemon in-filename out-filename host port ");
+    System.out.println("Usage : ClientPokemon in-filename out-filename host port [window]");
   }
 
   public ClientPokemonFull(String inFilename, String outFilename,
@@ -64,42 +74,39 @@ public class ClientPokemonFull {
     this.datagramChannel = DatagramChannel.open();
   }
 
-  private String pokemonName(ByteBuffer buffer) {
-    var nameBuffer = ByteBuffer.allocate(BUFSIZ_RECEIVE);
-    while (buffer.hasRemaining()) {
-      var data = buffer.get();
-      if (data == 0x00) {
-        break;
-      }
+  private void receiverRun(Collection<String> pokemonNames, BlockingQueue<Pokemon> pokemonQueue) {
+    var receiveBuffer = ByteBuffer.allocateDirect(BUFSIZ_RECEIVE);
+    var parser = new ResponseParser(receiveBuffer, pokemonNames);
+    for (;;) {
+      try {
+        receiveBuffer.clear();
+        var dst = (InetSocketAddress) datagramChannel.receive(receiveBuffer);
+        receiveBuffer.flip();
+        logger.fine(() -> "Received " + receiveBuffer.remaining() + " bytes from " + dst);
 
-      nameBuffer.put(data);
-    }
-
-    nameBuffer.flip();
-    return UTF8.decode(nameBuffer).toString();
-  }
-
-  private HashMap<String, Integer> pokemonCharacteristics(ByteBuffer buffer) {
-    var characteristics = new HashMap<String, Integer>();
-    var charactBuffer = ByteBuffer.allocate(BUFSIZ_RECEIVE);
-
-    while (buffer.hasRemaining()) {
-      var data = buffer.get();
-      if (data == 0x00) {
-        if (buffer.remaining() < Integer.BYTES) {
-          logger.warning("Invalid packet format, stopping characteristics retrieve...");
-          break;
+        var pokemon = parser.parse();
+        if (pokemon == null) {
+          logger.warning("Invalid pokémon name. Dropping ...");
+          continue;
         }
-
-        charactBuffer.flip();
-        characteristics.put(UTF8.decode(charactBuffer).toString(), buffer.getInt());
-        charactBuffer.clear();
-        continue;
+        logger.fine(() -> "Received pokemon: " + pokemon.name());
+        pokemonQueue.add(pokemon);
+      } catch (AsynchronousCloseException e) {
+        logger.info("Channel closed, stopping receiver.");
+        return;
+      } catch (IOException e) {
+        logger.warning("IOException occured on receiver.");
+        return;
       }
-      charactBuffer.put(data);
     }
+  }
 
-    return characteristics;
+  private ByteBuffer encodeRequest(ByteBuffer sendBuffer, String pokemonName) {
+    sendBuffer.clear();
+    var encode = UTF8.encode(pokemonName);
+    sendBuffer.putInt(encode.remaining());
+    sendBuffer.put(encode);
+    return sendBuffer.flip();
   }
 
   public void launch() throws IOException, InterruptedException {
@@ -109,40 +116,12 @@ public class ClientPokemonFull {
       var pokemonQueue = new ArrayBlockingQueue<Pokemon>(pokemonNames.size());
       var pokemons = new ArrayList<Pokemon>();
 
-      Thread.ofPlatform().start(() -> {
-        var receiveBuffer = ByteBuffer.allocateDirect(BUFSIZ_RECEIVE);
-        for (;;) {
-          try {
-            receiveBuffer.clear();
-            var dst = (InetSocketAddress) datagramChannel.receive(receiveBuffer);
-            receiveBuffer.flip();
-            logger.info("Received " + receiveBuffer.remaining() + " bytes from " + dst);
-
-            var name = pokemonName(receiveBuffer);
-            if (!pokemonNames.contains(name)) {
-              logger.warning("Invalid pokémon name:" + name + ". Dropping ...");
-              continue;
-            }
-            logger.info("Received pokemon: " + name);
-            pokemonQueue.add(new Pokemon(name, pokemonCharacteristics(receiveBuffer)));
-          } catch (AsynchronousCloseException e) {
-            logger.info("Channel closed, stopping receiver.");
-            return;
-          } catch (IOException e) {
-            logger.warning("IOException occured on receiver.");
-            return;
-          }
-        }
-      });
+      Thread.ofPlatform().start(() -> receiverRun(pokemonNames, pokemonQueue));
 
       var sendBuffer = ByteBuffer.allocateDirect(BUFSIZ_SEND);
 
       for (var pokemonName : pokemonNames) {
-        sendBuffer.clear();
-        var encode = UTF8.encode(pokemonName);
-        sendBuffer.putInt(encode.remaining());
-        sendBuffer.put(encode);
-        sendBuffer.flip();
+        encodeRequest(sendBuffer, pokemonName);
         logger.info("Sending " + pokemonName + " to " + server);
         datagramChannel.send(sendBuffer, server);
 
@@ -174,9 +153,178 @@ public class ClientPokemonFull {
     }
   }
 
+  /**
+   * Same as launch but up to window requests are in flight. A response only
+   * carries the name of the pokemon, so the lines waiting for each name are
+   * indexed by name and a response answers the oldest one; each request is
+   * sent again TIMEOUT ms after its last send until it is answered. The
+   * pokemons are written in the order of the input file.
+   */
+  public void launchBurst(int window) throws IOException, InterruptedException {
+    if (window < 1) {
+      throw new IllegalArgumentException();
+    }
+    try {
+      datagramChannel.bind(null);
+      var pokemonNames = Files.readAllLines(Path.of(inFilename), UTF8);
+      var pokemonQueue = new LinkedBlockingQueue<Pokemon>();
+      var pokemons = new Pokemon[pokemonNames.size()];
+      var pending = new HashMap<String, ArrayDeque<Integer>>(); // lines sent and not answered, by name
+      // requests in flight by deadline, all the timers have the same duration
+      var timers = new ArrayDeque<Timer>();
+      var timeout = TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+      var next = 0;
+      var inFlight = 0;
+      var answered = 0;
+
+      Thread.ofPlatform().start(() -> receiverRun(pokemonNames, pokemonQueue));
+
+      var sendBuffer = ByteBuffer.allocateDirect(BUFSIZ_SEND);
+      while (answered < pokemons.length) {
+        var now = System.nanoTime();
+        for (; inFlight < window && next < pokemons.length; next++, inFlight++) {
+          var pokemonName = pokemonNames.get(next);
+          datagramChannel.send(encodeRequest(sendBuffer, pokemonName), server);
+          pending.computeIfAbsent(pokemonName, __ -> new ArrayDeque<>()).add(next);
+          timers.add(new Timer(now + timeout, next));
+        }
+
+        for (Timer timer; (timer = timers.peek()) != null && timer.deadline - now <= 0; ) {
+          timers.poll();
+          if (pokemons[timer.index] != null) {
+            continue;
+          }
+          var pokemonName = pokemonNames.get(timer.index);
+          logger.info("Timeout expired. Sending " + pokemonName + " again.");
+          datagramChannel.send(encodeRequest(sendBuffer, pokemonName), server);
+          timers.add(new Timer(now + timeout, timer.index));
+        }
+
+        var head = timers.peek();
+        var response = head == null ? pokemonQueue.take()
+            : pokemonQueue.poll(head.deadline - now, TimeUnit.NANOSECONDS);
+        for (; response != null; response = pokemonQueue.poll()) {
+          var lines = pending.get(response.name());
+          if (lines == null || lines.isEmpty()) {
+            logger.info("Duplicate pokemon, dropping....");
+            continue;
+          }
+          pokemons[lines.poll()] = response;
+          answered++;
+          inFlight--;
+        }
+      }
+
+      var lines = Arrays.stream(pokemons).map(Pokemon::toString).toList();
+      Files.write(Paths.get(outFilename), lines, UTF8, CREATE, WRITE, TRUNCATE_EXISTING);
+    } finally {
+      datagramChannel.close();
+    }
+  }
+
+  /**
+   * Parser of the responses received in one buffer. The strings are delimited
+   * by looking for their 0 in the buffer itself and looked up by their bytes:
+   * the names against the names of the input file, which are the only valid
+   * ones, and the characteristics against the ones already seen. Only the
+   * characteristics that are not known yet are decoded, with a reused decoder.
+   */
+  static class ResponseParser {
+    private static final int MAX_CHARACTERISTICS = 1024; // bytes -> string kept for the next responses
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer view; // of the bytes of buffer being looked up
+    private final Map<ByteBuffer, String> names = new HashMap<>();
+    private final Map<ByteBuffer, String> characteristics = new HashMap<>();
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFSIZ_RECEIVE);
+    private final ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<>();
+
+    ResponseParser(ByteBuffer buffer, Collection<String> pokemonNames) {
+      this.buffer = buffer;
+      this.view = buffer.duplicate();
+      for (var name : pokemonNames) {
+        names.putIfAbsent(UTF8.encode(name), name);
+      }
+    }
+
+    private ByteBuffer view(int from, int to) {
+      return view.clear().position(from).limit(to);
+    }
+
+    /**
+     * @return the index of the first 0 of buffer from index from, or its limit
+     */
+    private int terminator(int from) {
+      var limit = buffer.limit();
+      for (var i = from; i < limit; i++) {
+        if (buffer.get(i) == 0) {
+          return i;
+        }
+      }
+      return limit;
+    }
+
+    private String characteristic(int from, int to) {
+      var characteristic = characteristics.get(view(from, to));
+      if (characteristic != null) {
+        return characteristic;
+      }
+      decoder.reset();
+      decoder.decode(view(from, to), chars.clear(), true);
+      decoder.flush(chars);
+      characteristic = chars.flip().toString();
+      if (characteristics.size() < MAX_CHARACTERISTICS) {
+        characteristics.put(ByteBuffer.allocate(to - from).put(view(from, to)).flip(), characteristic);
+      }
+      return characteristic;
+    }
+
+    private void put(String characteristic, int value) {
+      for (var i = 0; i < entries.size(); i++) {
+        if (entries.get(i).getKey().equals(characteristic)) {
+          entries.set(i, Map.entry(characteristic, value)); // the last value wins
+          return;
+        }
+      }
+      entries.add(Map.entry(characteristic, value));
+    }
+
+    /**
+     * Parses the response in buffer (in read-mode) and consumes it.
+     *
+     * @return the pokemon, or null if its name is not one of the input file
+     */
+    @SuppressWarnings("unchecked")
+    Pokemon parse() {
+      var limit = buffer.limit();
+      var end = terminator(buffer.position());
+      var name = names.get(view(buffer.position(), end));
+      buffer.position(limit);
+      if (name == null) {
+        return null;
+      }
+      entries.clear();
+      for (var from = end + 1; from < limit; ) {
+        var terminator = terminator(from);
+        if (terminator == limit) {
+          break; // characteristic without its value
+        }
+        if (limit - terminator - 1 < Integer.BYTES) {
+          logger.warning("Invalid packet format, stopping characteristics retrieve...");
+          break;
+        }
+        put(characteristic(from, terminator), buffer.getInt(terminator + 1));
+        from = terminator + 1 + Integer.BYTES;
+      }
+      return new Pokemon(name, Map.ofEntries(entries.toArray(Map.Entry[]::new)));
+    }
+  }
 
   public static void main(String[] args) throws IOException, InterruptedException {
-    if (args.length != 4) {
+    if (args.length != 4 && args.length != 5) {
       usage();
       return;
     }
@@ -186,6 +334,11 @@ public class ClientPokemonFull {
     var server = new InetSocketAddress(args[2], Integer.parseInt(args[3]));
 
     // Create client with the parameters and launch it
-    new ClientPokemonFull(inFilename, outFilename, server).launch();
+    var client = new ClientPokemonFull(inFilename, outFilename, server);
+    if (args.length == 5) {
+      client.launchBurst(Integer.parseInt(args[4]));
+    } else {
+      client.launch();
+    }
   }
 }
\ No newline at end of file
@@ -0,0 +1,63 @@
+package fr.uge.net.udp.exam2223.ex1;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time and the bytes allocated by the ResponseParser of
+ * ClientPokemonFull per response, on responses like the ones of the server:
+ * a name among the names of the input file followed by a few characteristics.
+ * The allocations are measured on the current thread with the ThreadMXBean of
+ * the JDK, which is why this is kept out of the client.
+ */
+public class ResponseParserBench {
+  private static final int NB_NAMES = 1_000;
+  private static final String[] CHARACTERISTICS = { "hp", "attack", "defense", "speed", "spécial" };
+  private static final int ROUNDS = 5;
+  private static final long ROUND_DURATION = TimeUnit.SECONDS.toNanos(1);
+
+  private static ByteBuffer response(String name, int seed) {
+    var buffer = ByteBuffer.allocate(1024);
+    buffer.put(StandardCharsets.UTF_8.encode(name)).put((byte) 0);
+    for (var i = 0; i < CHARACTERISTICS.length; i++) {
+      buffer.put(StandardCharsets.UTF_8.encode(CHARACTERISTICS[i])).put((byte) 0).putInt(seed * 31 + i);
+    }
+    return buffer.flip();
+  }
+
+  public static void main(String[] args) {
+    var names = new ArrayList<String>(NB_NAMES);
+    var responses = new ByteBuffer[NB_NAMES];
+    for (var i = 0; i < NB_NAMES; i++) {
+      names.add("Pokemon" + i);
+      responses[i] = response(names.get(i), i);
+    }
+    var receiveBuffer = ByteBuffer.allocateDirect(2048);
+    var parser = new ClientPokemonFull.ResponseParser(receiveBuffer, names);
+    var threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    for (var round = 0; round < ROUNDS; round++) {
+      var count = 0L;
+      var invalid = 0L;
+      var allocatedAtStart = threadMXBean.getCurrentThreadAllocatedBytes();
+      var start = System.nanoTime();
+      long elapsed;
+      do {
+        for (var response : responses) {
+          receiveBuffer.clear();
+          receiveBuffer.put(response.rewind()).flip();
+          if (parser.parse() == null) {
+            invalid++;
+          }
+        }
+        count += responses.length;
+      } while ((elapsed = System.nanoTime() - start) < ROUND_DURATION);
+      var allocated = threadMXBean.getCurrentThreadAllocatedBytes() - allocatedAtStart;
+      System.out.printf("Round %d: %,.0f ns and %d bytes per response, %d invalid%n",
+          round, (double) elapsed / count, allocated / count, invalid);
+    }
+  }
+}
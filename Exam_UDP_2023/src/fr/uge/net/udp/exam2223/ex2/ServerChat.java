@@ -2,133 +2,278 @@ package fr.uge.net.udp.exam2223.ex2;
 
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+/**
+ * Chat server: a datagram (int size + UTF-8 sender, int size + UTF-8
+ * recipient, int size + UTF-8 message) registers the address of its sender
+ * under its name the first time, and is forwarded to the address of the
+ * recipient without the recipient (int size + sender, int size + message).
+ *
+ * The names and the messages are never decoded: the users are looked up by the
+ * bytes of their name, and a datagram is forwarded from the receive buffer
+ * once the recipient has been cut out of it.
+ *
+ * A name is leased to an address for LEASE_TTL, and the lease is renewed by
+ * every datagram sent from this address. The datagrams sent under a name
+ * leased to another address are dropped. At most MAX_USERS names are leased,
+ * the least recently used lease is revoked to make room for a new one.
+ */
 public class ServerChat {
   private static final int BUFFER_SIZE = 2048;
+  private static final long STATS_PERIOD = 10_000; // in ms
+  private static final int MAX_USERS = 100_000;
+  private static final long LEASE_TTL = TimeUnit.MINUTES.toNanos(10);
   private static final Logger logger = Logger.getLogger(ServerChat.class.getName());
   private static final Charset UTF8 = StandardCharsets.UTF_8;
   private final SessionHolder sessionHolder = new SessionHolder();
   private final DatagramChannel datagramChannel;
   private final int port;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final ByteBuffer view = buffer.duplicate(); // of the name being looked up in buffer
+  private InetSocketAddress pendingDst; // of the datagram in buffer that could not be sent yet
+
+  private long forwarded;
+  private long dropped;
 
   public ServerChat(int port) throws IOException {
     this.datagramChannel = DatagramChannel.open();
     this.port = port;
   }
 
+  private static class Lease {
+    private final InetSocketAddress address;
+    private long lastSeen;
+
+    private Lease(InetSocketAddress address, long lastSeen) {
+      this.address = address;
+      this.lastSeen = lastSeen;
+    }
+  }
+
+  /**
+   * Leases of the users by the bytes of their name, from the least recently
+   * used to the most recently used.
+   */
   private static class SessionHolder {
-    private final Map<String, InetSocketAddress> users = new HashMap<>();
+    private final LinkedHashMap<ByteBuffer, Lease> users = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Lease> eldest) {
+        if (size() <= MAX_USERS) {
+          return false;
+        }
+        evicted++;
+        return true;
+      }
+    };
+    private long evicted;
+    private long expired;
+    private long rejected;
 
-    Optional<InetSocketAddress> getAddr(String user) {
-      return Optional.ofNullable(users.get(user));
+    /**
+     * @return the address leased to user, or null if there is none
+     */
+    InetSocketAddress getAddr(ByteBuffer user, long now) {
+      var lease = users.get(user);
+      if (lease == null) {
+        return null;
+      }
+      if (now - lease.lastSeen >= LEASE_TTL) {
+        users.remove(user);
+        expired++;
+        return null;
+      }
+      return lease.address;
     }
 
-    boolean userExists(String user) {
-      return users.containsKey(user);
+    /**
+     * Leases user to dst, or renews its lease if it is already leased to dst.
+     *
+     * @return false if user is leased to another address
+     */
+    boolean register(ByteBuffer user, InetSocketAddress dst, long now) {
+      var lease = users.get(user);
+      if (lease == null) {
+        users.put(ByteBuffer.allocate(user.remaining()).put(user.duplicate()).flip(), new Lease(dst, now));
+        return true;
+      }
+      if (now - lease.lastSeen >= LEASE_TTL) {
+        expired++;
+        users.put(user, new Lease(dst, now)); // keeps the key, which is not a view of the receive buffer
+        return true;
+      }
+      if (!lease.address.equals(dst)) {
+        rejected++;
+        return false;
+      }
+      lease.lastSeen = now;
+      return true;
     }
 
-//    boolean socketExists(InetSocketAddress dst) {
-//      return users.containsValue(dst);
-//    }
+    /**
+     * Revokes the leases not renewed for LEASE_TTL at the head of users, the
+     * other ones are revoked when they are looked up.
+     */
+    void expire(long now) {
+      for (var iterator = users.values().iterator(); iterator.hasNext(); ) {
+        if (now - iterator.next().lastSeen < LEASE_TTL) {
+          return;
+        }
+        iterator.remove();
+        expired++;
+      }
+    }
+
+    String stats() {
+      return users.size() + " users, " + evicted + " evicted, " + expired + " expired, " + rejected
+          + " rejected (address mismatch)";
+    }
+  }
+
+  private ByteBuffer view(int from, int to) {
+    return view.clear().position(from).limit(to);
+  }
+
+  /**
+   * @return the index after the string (int size + bytes) at index from in
+   *         buffer (read-mode), or -1 if it does not fit before the limit
+   */
+  private int skipString(int from) {
+    if (buffer.limit() - from < Integer.BYTES) {
+      return -1;
+    }
+    var size = buffer.getInt(from);
+    if (size < 0 || buffer.limit() - from - Integer.BYTES < size) {
+      return -1;
+    }
+    return from + Integer.BYTES + size;
+  }
+
+  /**
+   * Turns the datagram in buffer (read-mode) into the datagram to forward.
+   *
+   * @return the address of the recipient, or null if the datagram is dropped
+   */
+  private InetSocketAddress rewrite(InetSocketAddress dst) {
+    var recipientStart = skipString(0);
+    if (recipientStart < 0) {
+      logger.warning("Invalid packet format, dropping...");
+      return null;
+    }
+    var now = System.nanoTime();
+    if (!sessionHolder.register(view(Integer.BYTES, recipientStart), dst, now)) {
+      logger.fine(() -> "Socket invalid for user " + UTF8.decode(view(Integer.BYTES, recipientStart))
+          + ", dropping...");
+      return null;
+    }
 
-    void add(String user, InetSocketAddress dst) {
-      if (!userExists(user)) {
-        users.put(user, dst);
+    var messageStart = skipString(recipientStart);
+    var end = messageStart < 0 ? -1 : skipString(messageStart);
+    if (end < 0) {
+      logger.warning("Invalid packet format, dropping...");
+      return null;
+    }
+
+    var recipientAddress = sessionHolder.getAddr(view(recipientStart + Integer.BYTES, messageStart), now);
+    if (recipientAddress == null) {
+      logger.warning(() -> "User " + UTF8.decode(view(recipientStart + Integer.BYTES, messageStart))
+          + " could not be found, dropping...");
+      return null;
+    }
+
+    // the message, with its size, takes the place of the recipient
+    buffer.put(recipientStart, buffer, messageStart, end - messageStart);
+    buffer.position(0).limit(recipientStart + end - messageStart);
+    return recipientAddress;
+  }
+
+  /**
+   * Forwards all the received datagrams and stops if one of them cannot be
+   * sent now.
+   */
+  private void doRead(SelectionKey key) throws IOException {
+    for (;;) {
+      buffer.clear();
+      var dst = (InetSocketAddress) datagramChannel.receive(buffer);
+      if (dst == null) {
+        return;
       }
+      buffer.flip();
+      logger.fine(() -> "Received " + buffer.remaining() + " bytes from " + dst);
+
+      var recipientAddress = rewrite(dst);
+      if (recipientAddress == null) {
+        dropped++;
+        continue;
+      }
+      datagramChannel.send(buffer, recipientAddress);
+      if (buffer.hasRemaining()) {
+        pendingDst = recipientAddress;
+        key.interestOps(SelectionKey.OP_WRITE);
+        return;
+      }
+      forwarded++;
     }
+  }
 
-    boolean isSocketValid(String user, InetSocketAddress dst) {
-      return userExists(user) && users.get(user).equals(dst);
+  private void doWrite(SelectionKey key) throws IOException {
+    datagramChannel.send(buffer, pendingDst);
+    if (buffer.hasRemaining()) {
+      return;
     }
+    forwarded++;
+    pendingDst = null;
+    key.interestOps(SelectionKey.OP_READ);
   }
 
-  private String getStrFromBuffer(ByteBuffer buffer, int dst) {
-    var tmpLimit = buffer.limit();
-    buffer.limit(buffer.position() + dst);
-    var str = UTF8.decode(buffer).toString();
-    buffer.limit(tmpLimit);
-    return str;
+  private void treatKey(SelectionKey key) {
+    try {
+      if (key.isValid() && key.isWritable()) {
+        doWrite(key);
+      }
+      if (key.isValid() && key.isReadable()) {
+        doRead(key);
+      }
+    } catch (IOException ioe) {
+      throw new UncheckedIOException(ioe);
+    }
   }
 
   public void serve() throws IOException {
     datagramChannel.bind(new InetSocketAddress(port));
     System.out.println("ServerChat started on port " + port);
-    try {
-      var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    try (var selector = Selector.open()) {
+      datagramChannel.configureBlocking(false);
+      datagramChannel.register(selector, SelectionKey.OP_READ);
+      var lastStats = System.currentTimeMillis();
+      var lastForwarded = 0L;
       while (!Thread.interrupted()) {
-        buffer.clear();
-        var dst = (InetSocketAddress) datagramChannel.receive(buffer);
-        buffer.flip();
-        logger.info("Received " + buffer.remaining() + " bytes from " + dst);
-
-        if (buffer.remaining() < Integer.BYTES) {
-          logger.warning("Invalid packet format for sender name len, dropping...");
-          continue;
-        }
-        var senderSize = buffer.getInt();
-        if (buffer.remaining() < senderSize) {
-          logger.warning("Invalid packet format for sender name, dropping...");
-          continue;
-        }
-        var sender = getStrFromBuffer(buffer, senderSize);
-
-        if (buffer.remaining() < Integer.BYTES) {
-          logger.warning("Invalid packet format for recipient name len, dropping...");
-          continue;
-        }
-        var recipientSize = buffer.getInt();
-        if (buffer.remaining() < recipientSize) {
-          logger.warning("Invalid packet format for recipient name, dropping...");
-          continue;
+        try {
+          selector.select(this::treatKey, STATS_PERIOD);
+        } catch (UncheckedIOException tunneled) {
+          throw tunneled.getCause();
         }
-        var recipient = getStrFromBuffer(buffer, recipientSize);
 
-        if (buffer.remaining() < Integer.BYTES) {
-          logger.warning("Invalid packet format for message len, dropping...");
-          continue;
+        var now = System.currentTimeMillis();
+        if (now - lastStats >= STATS_PERIOD) {
+          sessionHolder.expire(System.nanoTime());
+          logger.info(String.format("%.0f msg/s, %d forwarded, %d dropped, %s",
+              (forwarded - lastForwarded) * 1000.0 / (now - lastStats), forwarded, dropped, sessionHolder.stats()));
+          lastStats = now;
+          lastForwarded = forwarded;
         }
-        var msgSize = buffer.getInt();
-        if (buffer.remaining() < msgSize) {
-          logger.warning("Invalid packet format for message, dropping...");
-          continue;
-        }
-        var message = getStrFromBuffer(buffer, msgSize);
-        logger.info("Packet from " + sender + " to " + recipient + " :\n" + message);
-
-        if (!sessionHolder.userExists(sender)) {
-          sessionHolder.add(sender, dst);
-          logger.info("Adding sender " + sender + " to sessionHolder.");
-        } else {
-          if (!sessionHolder.isSocketValid(sender, dst)) {
-            logger.warning("Socket invalid for user " + sender + ", dropping...");
-          }
-        }
-
-        var recipientAddress = sessionHolder.getAddr(recipient);
-        if (recipientAddress.isEmpty()) {
-          logger.warning("User " + recipient + " could not be found, dropping...");
-          continue;
-        }
-
-        logger.info("Forwarding message to " + recipient);
-        buffer.clear();
-        buffer.putInt(senderSize)
-                .put(UTF8.encode(sender))
-                .putInt(msgSize)
-                .put(UTF8.encode(message));
-
-        buffer.flip();
-        datagramChannel.send(buffer, recipientAddress.get());
       }
     } finally {
       datagramChannel.close();
@@ -157,4 +302,4 @@ public class ServerChat {
       System.err.println("Server could not bind on " + port + "\nAnother server is probably running on this port.");
     }
   }
-}
\ No newline at end of file
+}
@@ -7,17 +7,54 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.logging.Logger;
 
+/**
+ * Slice server: every long of a received datagram is sent back to its sender
+ * in a datagram of its own.
+ *
+ * The received datagrams are queued per client and the clients are served in
+ * turn, one slice each, so that a client sending many longs does not delay the
+ * others. The server keeps reading while the slices are sent, and sends as many
+ * slices as the socket accepts on each wakeup. The number of jobs pending, in
+ * total and per client, is bounded, the requests beyond are dropped: at most
+ * MAX_JOBS * BUFSIZ bytes are queued.
+ */
 public class ServerSlice {
   private static final int BUFSIZ = Long.BYTES * 128;
+  private static final int MAX_JOBS = 10_000;
+  private static final int MAX_JOBS_PER_CLIENT = 64;
+  private static final int MAX_BATCH = 4_096; // slices sent per wakeup, so that reads are not delayed
+  private static final long STATS_PERIOD = 10_000; // in ms
   private static final Logger logger = Logger.getLogger(ServerSlice.class.getName());
   private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFSIZ);
+  private final ByteBuffer slice = ByteBuffer.allocateDirect(Long.BYTES);
   private final DatagramChannel datagramChannel;
   private final Selector selector;
-  private InetSocketAddress sender;
   private final int port;
 
+  private final HashMap<InetSocketAddress, Client> clients = new HashMap<>(); // with pending jobs
+  private final ArrayDeque<Client> turns = new ArrayDeque<>(); // same clients, in the order they are served
+  private SelectionKey key;
+  private int jobs;
+
+  private long sent;
+  private long dropped;
+
+  /**
+   * A client and the longs left to send it, one buffer per request.
+   */
+  private static class Client {
+    private final InetSocketAddress address;
+    private final ArrayDeque<ByteBuffer> jobs = new ArrayDeque<>();
+
+    private Client(InetSocketAddress address) {
+      this.address = address;
+    }
+  }
+
   public ServerSlice(int port) throws IOException {
     this.port = port;
     this.selector = Selector.open();
@@ -27,54 +64,106 @@ public class ServerSlice {
   public void serve() throws IOException {
     datagramChannel.bind(new InetSocketAddress(port));
     datagramChannel.configureBlocking(false);
-    datagramChannel.register(selector, SelectionKey.OP_READ);
+    key = datagramChannel.register(selector, SelectionKey.OP_READ);
     logger.info("ServerSlice started on port " + port);
+    var lastStats = System.currentTimeMillis();
+    var lastSent = 0L;
     while (!Thread.interrupted()) {
-      selector.select(this::treatKey);
+      try {
+        selector.select(this::treatKey, STATS_PERIOD);
+      } catch (UncheckedIOException tunneled) {
+        throw tunneled.getCause();
+      }
+      updateInterestOps();
+
+      var now = System.currentTimeMillis();
+      if (now - lastStats >= STATS_PERIOD) {
+        logger.info(String.format("%.0f slices/s, %d sent, %d requests dropped, %d jobs of %d clients pending",
+            (sent - lastSent) * 1000.0 / (now - lastStats), sent, dropped, jobs, clients.size()));
+        lastStats = now;
+        lastSent = sent;
+      }
     }
   }
 
   private void treatKey(SelectionKey key) {
     try {
       if (key.isValid() && key.isWritable()) {
-        doWrite(key);
+        doWrite();
       }
       if (key.isValid() && key.isReadable()) {
-        doRead(key);
+        doRead();
       }
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
   }
 
-  private void doRead(SelectionKey key) throws IOException {
-    buffer.clear();
-    sender = (InetSocketAddress) datagramChannel.receive(buffer);
-    if (sender == null) {
-      logger.warning("Could not receive any packet.");
-      return;
-    }
-
-    buffer.flip();
-    logger.info("Received " + buffer.remaining() + " bytes from " + sender);
-    key.interestOps(SelectionKey.OP_WRITE);
+  private void updateInterestOps() {
+    key.interestOps(turns.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
   }
 
-  private void doWrite(SelectionKey key) throws IOException {
-    if (buffer.remaining() < Long.BYTES) {
-      logger.info("All longs has been sent as slices.");
-      key.interestOps(SelectionKey.OP_READ);
-      return;
+  /**
+   * Queues all the received requests.
+   */
+  private void doRead() throws IOException {
+    for (;;) {
+      buffer.clear();
+      var sender = (InetSocketAddress) datagramChannel.receive(buffer);
+      if (sender == null) {
+        return;
+      }
+      buffer.flip();
+      logger.fine(() -> "Received " + buffer.remaining() + " bytes from " + sender);
+      if (buffer.remaining() < Long.BYTES) {
+        continue;
+      }
+
+      var client = clients.get(sender);
+      if (jobs >= MAX_JOBS || client != null && client.jobs.size() >= MAX_JOBS_PER_CLIENT) {
+        dropped++;
+        continue;
+      }
+      if (client == null) {
+        client = new Client(sender);
+        clients.put(sender, client);
+        turns.add(client);
+      }
+      buffer.limit(buffer.limit() - buffer.remaining() % Long.BYTES); // the trailing bytes are not a slice
+      client.jobs.add(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip());
+      jobs++;
     }
+  }
 
-    var limitTmp = buffer.limit();
-    buffer.limit(buffer.position() + Long.BYTES);
-    datagramChannel.send(buffer, sender);
-    if (buffer.hasRemaining()) {
-      logger.warning("Could not send any data to " + sender);
-      buffer.position(buffer.position() - Long.BYTES);
+  /**
+   * Sends the next slice of each client in turn until the socket is full or
+   * MAX_BATCH slices have been sent.
+   */
+  private void doWrite() throws IOException {
+    for (var i = 0; i < MAX_BATCH && !turns.isEmpty(); i++) {
+      var client = turns.peek();
+      var job = client.jobs.peek();
+      slice.clear();
+      slice.putLong(job.getLong(job.position())).flip();
+      datagramChannel.send(slice, client.address);
+      if (slice.hasRemaining()) {
+        return; // the socket is full, the same slice is sent on the next wakeup
+      }
+      sent++;
+
+      turns.poll();
+      job.position(job.position() + Long.BYTES);
+      if (!job.hasRemaining()) {
+        logger.fine(() -> "All longs has been sent as slices to " + client.address);
+        client.jobs.poll();
+        jobs--;
+        if (client.jobs.isEmpty()) {
+          clients.remove(client.address);
+          continue;
+        }
+      }
+      turns.add(client);
     }
-    buffer.limit(limitTmp);
   }
 
   public static void usage() {
@@ -88,4 +177,4 @@ public class ServerSlice {
     }
     new ServerSlice(Integer.parseInt(args[0])).serve();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,89 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Reads a LongSum request (an int count followed by count longs) and returns
+ * the sum of the longs. The longs are summed as they arrive, so the size of the
+ * request is not bounded by the size of any buffer.
+ */
+public class LongSumReader implements Reader<Long> {
+  private enum State {
+    DONE, WAITING_COUNT, WAITING_LONGS, ERROR
+  };
+
+  private final IntReader intReader = new IntReader();
+  private final ByteBuffer internalBuffer = ByteBuffer.allocate(Long.BYTES); // write-mode, partial long
+  private State state = State.WAITING_COUNT;
+  private int missing;
+  private long sum;
+
+  @Override
+  public ProcessStatus process(ByteBuffer buffer) {
+    Objects.requireNonNull(buffer);
+    if (state == State.DONE || state == State.ERROR) {
+      throw new IllegalStateException();
+    }
+
+    if (state == State.WAITING_COUNT) {
+      if (intReader.process(buffer) == ProcessStatus.REFILL) {
+        return ProcessStatus.REFILL;
+      }
+
+      missing = intReader.get();
+      if (missing < 0) {
+        state = State.ERROR;
+        return ProcessStatus.ERROR;
+      }
+
+      state = State.WAITING_LONGS;
+    }
+
+    buffer.flip();
+    try {
+      while (missing > 0 && buffer.hasRemaining()) {
+        if (internalBuffer.position() == 0 && buffer.remaining() >= Long.BYTES) {
+          sum += buffer.getLong();
+          missing--;
+          continue;
+        }
+
+        // the long is split between two reads
+        internalBuffer.put(buffer.get());
+        if (!internalBuffer.hasRemaining()) {
+          sum += internalBuffer.flip().getLong();
+          internalBuffer.clear();
+          missing--;
+        }
+      }
+    } finally {
+      buffer.compact();
+    }
+
+    if (missing > 0) {
+      return ProcessStatus.REFILL;
+    }
+
+    state = State.DONE;
+    return ProcessStatus.DONE;
+  }
+
+  @Override
+  public Long get() {
+    if (state != State.DONE) {
+      throw new IllegalStateException();
+    }
+
+    return sum;
+  }
+
+  @Override
+  public void reset() {
+    state = State.WAITING_COUNT;
+    intReader.reset();
+    internalBuffer.clear();
+    missing = 0;
+    sum = 0;
+  }
+}
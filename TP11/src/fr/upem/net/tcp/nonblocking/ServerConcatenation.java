@@ -0,0 +1,329 @@
+package fr.upem.net.tcp.nonblocking;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Nonblocking server for the Concatenation protocol of TP7: the client sends an
+ * int count followed by count strings (int size + UTF-8 bytes) and receives the
+ * strings joined with commas as one string (int size + UTF-8 bytes).
+ *
+ * The strings are never decoded: their bytes are appended with the commas to
+ * a list of fixed-size chunks while they are read, and the reply is written
+ * from these chunks with a gathering write once the size is known.
+ *
+ * Since the protocol puts the size of the reply before it, the server must
+ * buffer a whole reply before sending anything: a connection holds up to
+ * maxReplySize bytes. A request whose reply would be bigger closes the
+ * connection. The default, DEFAULT_MAX_REPLY_SIZE, can be raised up to
+ * Integer.MAX_VALUE, the largest size the protocol can express, or lowered
+ * to bound the memory a client can make the server use.
+ */
+public class ServerConcatenation {
+	static private class Context {
+		private enum State {
+			WAITING_COUNT, WAITING_SIZE, WAITING_STRING, SENDING
+		};
+
+		private final SelectionKey key;
+		private final SocketChannel sc;
+		private final int maxReplySize;
+		private final ByteBuffer bufferIn = ByteBuffer.allocate(BUFFER_SIZE);
+		private final IntReader intReader = new IntReader();
+		private final ArrayList<ByteBuffer> chunks = new ArrayList<>();
+		private State state = State.WAITING_COUNT;
+		private int missingStrings;
+		private int missingBytes;
+		private boolean first; // no comma before the first string
+		private long size; // of the reply
+		private ByteBuffer[] reply;
+		private int replyIndex; // first buffer of reply not fully sent
+		private boolean closed = false;
+
+		private Context(SelectionKey key, int maxReplySize) {
+			this.key = key;
+			this.sc = (SocketChannel) key.channel();
+			this.maxReplySize = maxReplySize;
+		}
+
+		/**
+		 * Appends the next length bytes of src (in read-mode) to the chunks.
+		 */
+		private void append(ByteBuffer src, int length) {
+			while (length > 0) {
+				var last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+				if (last == null || !last.hasRemaining()) {
+					last = ByteBuffer.allocate(CHUNK_SIZE);
+					chunks.add(last);
+				}
+				var count = Math.min(length, last.remaining());
+				var tmpLimit = src.limit();
+				src.limit(src.position() + count);
+				last.put(src);
+				src.limit(tmpLimit);
+				length -= count;
+			}
+		}
+
+		private void fail(String reason) {
+			logger.info(reason + ", closing connection");
+			state = State.WAITING_COUNT;
+			chunks.clear();
+			silentlyClose();
+		}
+
+		/**
+		 * Reads as much of the current request as possible from bufferIn and
+		 * prepares the reply once the request is complete.
+		 *
+		 * The convention is that bufferIn is in write-mode before the call to
+		 * process and after the call
+		 */
+		private void processIn() {
+			for (;;) {
+				switch (state) {
+					case WAITING_COUNT -> {
+						if (intReader.process(bufferIn) == Reader.ProcessStatus.REFILL) {
+							return;
+						}
+						missingStrings = intReader.get();
+						intReader.reset();
+						if (missingStrings < 0) {
+							fail("Invalid request");
+							return;
+						}
+						first = true;
+						state = missingStrings == 0 ? State.SENDING : State.WAITING_SIZE;
+					}
+					case WAITING_SIZE -> {
+						if (intReader.process(bufferIn) == Reader.ProcessStatus.REFILL) {
+							return;
+						}
+						missingBytes = intReader.get();
+						intReader.reset();
+						var comma = first ? 0 : 1;
+						if (missingBytes < 0) {
+							fail("Invalid request");
+							return;
+						}
+						if (size + comma + missingBytes > maxReplySize) {
+							fail("Reply bigger than " + maxReplySize + " bytes");
+							return;
+						}
+						if (comma == 1) {
+							append(COMMA.duplicate(), 1);
+						}
+						size += comma + missingBytes;
+						first = false;
+						state = State.WAITING_STRING;
+					}
+					case WAITING_STRING -> {
+						bufferIn.flip();
+						var count = Math.min(bufferIn.remaining(), missingBytes);
+						append(bufferIn, count);
+						bufferIn.compact();
+						missingBytes -= count;
+						if (missingBytes > 0) {
+							return;
+						}
+						missingStrings--;
+						state = missingStrings == 0 ? State.SENDING : State.WAITING_SIZE;
+					}
+					case SENDING -> {
+						if (reply == null) {
+							prepareReply();
+						}
+						return;
+					}
+				}
+			}
+		}
+
+		private void prepareReply() {
+			reply = new ByteBuffer[chunks.size() + 1];
+			reply[0] = ByteBuffer.allocate(Integer.BYTES).putInt((int) size).flip();
+			for (var i = 0; i < chunks.size(); i++) {
+				reply[i + 1] = chunks.get(i).flip();
+			}
+			replyIndex = 0;
+			chunks.clear();
+		}
+
+		/**
+		 * Update the interestOps of the key looking only at values of the boolean
+		 * closed, of bufferIn and of the reply being sent.
+		 */
+		private void updateInterestOps() {
+			if (!key.isValid()) {
+				return;
+			}
+
+			var interestOps = 0x00;
+			if (!closed && bufferIn.hasRemaining()) {
+				interestOps |= SelectionKey.OP_READ;
+			}
+
+			if (state == State.SENDING) {
+				interestOps |= SelectionKey.OP_WRITE;
+			}
+
+			if (interestOps == 0) {
+				silentlyClose();
+				return;
+			}
+
+			key.interestOps(interestOps);
+		}
+
+		private void silentlyClose() {
+			try {
+				sc.close();
+			} catch (IOException e) {
+				// ignore exception
+			}
+		}
+
+		/**
+		 * Performs the read action on sc
+		 *
+		 * The convention is that bufferIn is in write-mode before the call to
+		 * doRead and after the call
+		 *
+		 * @throws IOException
+		 */
+		private void doRead() throws IOException {
+			if (sc.read(bufferIn) == -1) {
+				closed = true;
+			}
+
+			processIn();
+			updateInterestOps();
+		}
+
+		/**
+		 * Performs the write action on sc, then starts reading the next request
+		 * if the reply has been fully sent.
+		 *
+		 * @throws IOException
+		 */
+		private void doWrite() throws IOException {
+			sc.write(reply, replyIndex, Math.min(reply.length - replyIndex, MAX_GATHER));
+			while (replyIndex < reply.length && !reply[replyIndex].hasRemaining()) {
+				reply[replyIndex++] = null; // the chunk can be collected
+			}
+
+			if (replyIndex == reply.length) {
+				reply = null;
+				size = 0;
+				state = State.WAITING_COUNT;
+				processIn();
+			}
+			updateInterestOps();
+		}
+	}
+
+	private static final int BUFFER_SIZE = 8_192;
+	private static final int CHUNK_SIZE = 8_192;
+	private static final int MAX_GATHER = 1_024; // buffers per gathering write
+	private static final int DEFAULT_MAX_REPLY_SIZE = 1 << 30; // bytes buffered per connection
+	private static final ByteBuffer COMMA = ByteBuffer.wrap(new byte[] { ',' }).asReadOnlyBuffer();
+	private static final Logger logger = Logger.getLogger(ServerConcatenation.class.getName());
+
+	private final ServerSocketChannel serverSocketChannel;
+	private final Selector selector;
+	private final int maxReplySize;
+
+	public ServerConcatenation(int port) throws IOException {
+		this(port, DEFAULT_MAX_REPLY_SIZE);
+	}
+
+	public ServerConcatenation(int port, int maxReplySize) throws IOException {
+		if (maxReplySize < 0) {
+			throw new IllegalArgumentException();
+		}
+		this.maxReplySize = maxReplySize;
+		serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.bind(new InetSocketAddress(port));
+		selector = Selector.open();
+	}
+
+	public void launch() throws IOException {
+		serverSocketChannel.configureBlocking(false);
+		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+		while (!Thread.interrupted()) {
+			// Helpers.printKeys(selector); // for debug
+			try {
+				selector.select(this::treatKey);
+			} catch (UncheckedIOException tunneled) {
+				throw tunneled.getCause();
+			}
+		}
+	}
+
+	private void treatKey(SelectionKey key) {
+		// Helpers.printSelectedKey(key); // for debug
+		try {
+			if (key.isValid() && key.isAcceptable()) {
+				doAccept(key);
+			}
+		} catch (IOException ioe) {
+			// lambda call in select requires to tunnel IOException
+			throw new UncheckedIOException(ioe);
+		}
+		try {
+			if (key.isValid() && key.isWritable()) {
+				((Context) key.attachment()).doWrite();
+			}
+			if (key.isValid() && key.isReadable()) {
+				((Context) key.attachment()).doRead();
+			}
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+			silentlyClose(key);
+		}
+	}
+
+	private void doAccept(SelectionKey key) throws IOException {
+		var sc = serverSocketChannel.accept();
+		if (sc == null) {
+			return;
+		}
+
+		sc.configureBlocking(false);
+		// the reply is written in one go, Nagle would hold it until the next request acks the previous one
+		sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		var clientKey = sc.register(selector, SelectionKey.OP_READ);
+		clientKey.attach(new Context(clientKey, maxReplySize));
+	}
+
+	private void silentlyClose(SelectionKey key) {
+		Channel sc = (Channel) key.channel();
+		try {
+			sc.close();
+		} catch (IOException e) {
+			// ignore exception
+		}
+	}
+
+	public static void main(String[] args) throws NumberFormatException, IOException {
+		if (args.length != 1 && args.length != 2) {
+			usage();
+			return;
+		}
+		var maxReplySize = args.length == 2 ? Integer.parseInt(args[1]) : DEFAULT_MAX_REPLY_SIZE;
+		new ServerConcatenation(Integer.parseInt(args[0]), maxReplySize).launch();
+	}
+
+	private static void usage() {
+		System.out.println("Usage : ServerConcatenation port [maxReplySize]");
+		System.out.println("  maxReplySize : bytes of the biggest reply, buffered before it is sent (default "
+				+ DEFAULT_MAX_REPLY_SIZE + ")");
+	}
+}
@@ -0,0 +1,83 @@
+package fr.upem.net.tcp.nonblocking;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LongSumReaderTest {
+
+    @Test
+    public void simple() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(3).putLong(1).putLong(-5).putLong(Long.MAX_VALUE);
+        var reader = new LongSumReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(1 - 5 + Long.MAX_VALUE, reader.get());
+        assertEquals(0, bb.position());
+        assertEquals(bb.capacity(), bb.limit());
+    }
+
+    @Test
+    public void empty() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(0);
+        var reader = new LongSumReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(0L, reader.get());
+    }
+
+    @Test
+    public void reset() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(2).putLong(10).putLong(20).putInt(1).putLong(7);
+        var reader = new LongSumReader();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(30L, reader.get());
+        assertEquals(Integer.BYTES + Long.BYTES, bb.position());
+        reader.reset();
+        assertEquals(Reader.ProcessStatus.DONE, reader.process(bb));
+        assertEquals(7L, reader.get());
+        assertEquals(0, bb.position());
+    }
+
+    @Test
+    public void smallBuffer() {
+        var bb = ByteBuffer.allocate(1024);
+        var expected = 0L;
+        bb.putInt(50);
+        for (var i = 0; i < 50; i++) {
+            bb.putLong(i * 1_000_000_007L);
+            expected += i * 1_000_000_007L;
+        }
+        bb.flip();
+        var bbSmall = ByteBuffer.allocate(3);
+        var reader = new LongSumReader();
+        while (bb.hasRemaining()) {
+            while (bb.hasRemaining() && bbSmall.hasRemaining()) {
+                bbSmall.put(bb.get());
+            }
+            if (bb.hasRemaining()) {
+                assertEquals(Reader.ProcessStatus.REFILL, reader.process(bbSmall));
+            } else {
+                assertEquals(Reader.ProcessStatus.DONE, reader.process(bbSmall));
+            }
+        }
+        assertEquals(expected, reader.get());
+    }
+
+    @Test
+    public void errorGet() {
+        var reader = new LongSumReader();
+        assertThrows(IllegalStateException.class, reader::get);
+    }
+
+    @Test
+    public void errorNeg() {
+        var bb = ByteBuffer.allocate(1024);
+        bb.putInt(-1).putLong(1);
+        var reader = new LongSumReader();
+        assertEquals(Reader.ProcessStatus.ERROR, reader.process(bb));
+    }
+}
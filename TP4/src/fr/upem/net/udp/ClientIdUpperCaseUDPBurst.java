@@ -4,26 +4,25 @@ package fr.upem.net.udp;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.HashMap;
-import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.logging.Logger;
-import java.util.stream.IntStream;
 
 public class ClientIdUpperCaseUDPBurst {
   private static final Logger logger = Logger.getLogger(ClientIdUpperCaseUDPBurst.class.getName());
   private static final Charset UTF8 = StandardCharsets.UTF_8;
   private static final int BUFFER_SIZE = 1024;
-  private final List<String> lines;
+  private final PackedDatagrams datagrams;
   private final int nbLines;
   private final String[] upperCaseLines; //
   private final int timeout;
@@ -36,9 +35,9 @@ public class ClientIdUpperCaseUDPBurst {
     System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port ");
   }
 
-  public ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress, String outFilename) throws IOException {
-    this.lines = lines;
-    this.nbLines = lines.size();
+  public ClientIdUpperCaseUDPBurst(PackedDatagrams datagrams, int timeout, InetSocketAddress serverAddress, String outFilename) throws IOException {
+    this.datagrams = datagrams;
+    this.nbLines = datagrams.size();
     this.timeout = timeout;
     this.outFilename = outFilename;
     this.serverAddress = serverAddress;
@@ -49,17 +48,11 @@ public class ClientIdUpperCaseUDPBurst {
   }
 
   private void senderThreadRun() {
-    var linesBuffers = IntStream.range(0, nbLines).mapToObj(i -> {
-      var bb = ByteBuffer.allocate(BUFFER_SIZE);
-      return bb.putLong(i)
-              .put(UTF8.encode(lines.get(i)));
-    }).toArray(ByteBuffer[]::new);
-
     for (;;) {
       try {
         for (var index : answersLog.remaining()) {
           System.out.println("Sending line " + index + " to " + serverAddress + "...");
-          dc.send(linesBuffers[index].flip(), serverAddress);
+          dc.send(datagrams.get(index), serverAddress);
         }
         Thread.sleep(timeout);
       } catch (InterruptedException | AsynchronousCloseException e) {
@@ -86,6 +79,10 @@ public class ClientIdUpperCaseUDPBurst {
         }
 
         var id = bb.getLong();
+        if (id < 0 || id >= nbLines) {
+          logger.info("Received a response with an unknown id. Skipping...");
+          continue;
+        }
         var msg = UTF8.decode(bb).toString();
         System.out.println("Received response for line " + id + ": " + "\"" + msg + "\".");
 
@@ -115,15 +112,101 @@ public class ClientIdUpperCaseUDPBurst {
     int port = Integer.parseInt(args[4]);
     InetSocketAddress serverAddress = new InetSocketAddress(host, port);
 
-    //Read all lines of inFilename opened in UTF-8
-    List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
-    var ee = new ArrayBlockingQueue<HashMap<String, String>>(lines.size());
+    //Pack the datagrams of all lines of inFilename opened in UTF-8
+    var datagrams = PackedDatagrams.pack(Paths.get(inFilename));
 
     //Create client with the parameters and launch it
-    ClientIdUpperCaseUDPBurst client = new ClientIdUpperCaseUDPBurst(lines, timeout, serverAddress, outFilename);
+    ClientIdUpperCaseUDPBurst client = new ClientIdUpperCaseUDPBurst(datagrams, timeout, serverAddress, outFilename);
     client.launch();
   }
 
+  /**
+   * The datagrams of all the lines (id followed by the line in UTF-8), packed
+   * one after the other in a temporary file mapped in memory. Only the offset
+   * of each datagram is kept in the heap, so the size of the input is not
+   * limited by the heap and each datagram only takes its actual size.
+   *
+   * The file is mapped in regions of REGION_SIZE bytes, and a datagram that
+   * would cross the end of a region starts the next one.
+   */
+  static class PackedDatagrams {
+    private static final int REGION_SIZE = 1 << 30;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final MappedByteBuffer[] regions;
+    private final long[] offsets; // offsets[i + 1] is the end of datagram i, unless padding follows it
+    private final short[] lengths;
+
+    private PackedDatagrams(MappedByteBuffer[] regions, long[] offsets, short[] lengths) {
+      this.regions = regions;
+      this.offsets = offsets;
+      this.lengths = lengths;
+    }
+
+    static PackedDatagrams pack(Path inFilename) throws IOException {
+      var file = Files.createTempFile("idupper", ".dat");
+      try (var reader = Files.newBufferedReader(inFilename, UTF8);
+           var fc = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+               StandardOpenOption.DELETE_ON_CLOSE)) {
+        var offsets = new long[1024];
+        var lengths = new short[1024];
+        var nbDatagrams = 0;
+        var position = 0L;
+        var out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        var datagram = ByteBuffer.allocate(BUFFER_SIZE);
+        for (String line; (line = reader.readLine()) != null; nbDatagrams++) {
+          datagram.clear();
+          var encoded = UTF8.encode(line);
+          if (encoded.remaining() > BUFFER_SIZE - Long.BYTES) {
+            throw new IllegalArgumentException("Line " + nbDatagrams + " does not fit in a datagram");
+          }
+          datagram.putLong(nbDatagrams).put(encoded).flip();
+
+          var padding = 0;
+          if (position % REGION_SIZE + datagram.remaining() > REGION_SIZE) {
+            padding = (int) (REGION_SIZE - position % REGION_SIZE);
+          }
+          if (out.remaining() < padding + datagram.remaining()) {
+            fc.write(out.flip());
+            out.clear();
+          }
+          out.position(out.position() + padding);
+          position += padding;
+
+          if (nbDatagrams == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * nbDatagrams);
+            lengths = Arrays.copyOf(lengths, 2 * nbDatagrams);
+          }
+          offsets[nbDatagrams] = position;
+          lengths[nbDatagrams] = (short) datagram.remaining();
+          position += datagram.remaining();
+          out.put(datagram);
+        }
+        fc.write(out.flip());
+
+        // the mappings stay valid once the channel is closed and the file deleted
+        var regions = new MappedByteBuffer[(int) ((position + REGION_SIZE - 1) / REGION_SIZE)];
+        for (var i = 0; i < regions.length; i++) {
+          var start = (long) i * REGION_SIZE;
+          regions[i] = fc.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, position - start));
+        }
+        return new PackedDatagrams(regions, Arrays.copyOf(offsets, nbDatagrams), Arrays.copyOf(lengths, nbDatagrams));
+      }
+    }
+
+    int size() {
+      return offsets.length;
+    }
+
+    /**
+     * @return a new buffer, in read-mode, on the datagram of line id
+     */
+    ByteBuffer get(int id) {
+      var offset = offsets[id];
+      return regions[(int) (offset / REGION_SIZE)].slice((int) (offset % REGION_SIZE), lengths[id]);
+    }
+  }
+
   private static class AnswersLog {
     private final BitSet bitSet;
 
@@ -0,0 +1,255 @@
+package fr.upem.net.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sliding window client for the IdUpperCase protocol: up to window lines are
+ * in flight, and each one is sent again when its own retransmission timeout
+ * expires. The timeout is computed from the measured round-trip times as in
+ * TCP (Jacobson/Karels, with Karn's rule and exponential backoff).
+ *
+ * The main thread sends the lines and owns the timer queue, the listener
+ * thread records the answers in a lock-free bitmap and wakes the main thread
+ * up when a slot of the window is freed.
+ */
+public class ClientIdUpperCaseUDPWindow {
+  private static final Logger logger = Logger.getLogger(ClientIdUpperCaseUDPWindow.class.getName());
+  private static final Charset UTF8 = StandardCharsets.UTF_8;
+  private static final int BUFFER_SIZE = 1024;
+  private static final long INITIAL_RTO = TimeUnit.MILLISECONDS.toNanos(200);
+  private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(2);
+  private static final int MAX_BACKOFF = 6; // the RTO of a line is at most multiplied by 2^MAX_BACKOFF
+  // out of the range of System.nanoTime in practice, unlike 0 or -1 which it may return
+  private static final long RESENT = Long.MIN_VALUE;
+
+  private record Timer(long deadline, int id, int attempt) { }
+
+  private final List<String> lines;
+  private final int nbLines;
+  private final String outFilename;
+  private final int window;
+  private final InetSocketAddress server;
+  private final DatagramChannel dc;
+
+  private final String[] upperCaseLines; // written before the bit of the line is set in answered
+  private final AnswersLog answersLog;
+  // time of the first send, or RESENT once sent again (Karn's rule), set before the send
+  private final AtomicLongArray sentAt;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final PriorityQueue<Timer> timers = new PriorityQueue<>((t1, t2) -> Long.compare(t1.deadline, t2.deadline));
+  private volatile Thread sender;
+
+  // written by the listener thread only
+  private long srtt;
+  private long rttvar;
+  private volatile long rto = INITIAL_RTO;
+
+  private long sent;
+  private long resent;
+
+  public static void usage() {
+    System.out.println("Usage : ClientIdUpperCaseUDPWindow in-filename out-filename window host port");
+  }
+
+  public ClientIdUpperCaseUDPWindow(List<String> lines, String outFilename, int window, InetSocketAddress server)
+      throws IOException {
+    if (window < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.lines = lines;
+    this.nbLines = lines.size();
+    this.outFilename = outFilename;
+    this.window = window;
+    this.server = server;
+    this.upperCaseLines = new String[nbLines];
+    this.answersLog = new AnswersLog(nbLines);
+    this.sentAt = new AtomicLongArray(nbLines);
+    this.dc = DatagramChannel.open();
+    dc.bind(null);
+  }
+
+  /**
+   * Updates the RTO with a round-trip time sample, as in RFC 6298.
+   */
+  private void sampleRtt(long rtt) {
+    if (srtt == 0) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+    } else {
+      rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+      srtt = (7 * srtt + rtt) / 8;
+    }
+    rto = Math.clamp(srtt + 4 * rttvar, MIN_RTO, MAX_RTO);
+  }
+
+  private void listenerThreadRun() {
+    var bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    for (;;) {
+      bb.clear();
+      try {
+        dc.receive(bb);
+        var now = System.nanoTime();
+        bb.flip();
+        if (bb.remaining() < Long.BYTES) {
+          logger.info("Received a message with an invalid format. Skipping...");
+          continue;
+        }
+
+        var id = bb.getLong();
+        if (id < 0 || id >= nbLines || answersLog.isAnswered((int) id)) {
+          continue; // unknown id or duplicate
+        }
+        upperCaseLines[(int) id] = UTF8.decode(bb).toString();
+        if (!answersLog.validate((int) id)) {
+          continue; // should not happen, there is one listener
+        }
+
+        var firstSent = sentAt.get((int) id);
+        if (firstSent != RESENT) {
+          sampleRtt(now - firstSent);
+        }
+        inFlight.decrementAndGet();
+        LockSupport.unpark(sender);
+      } catch (AsynchronousCloseException e) {
+        logger.info("Listener thread stopped.");
+        return;
+      } catch (IOException e) {
+        logger.severe("IOException in listenerThreadRun: " + e.getMessage());
+        return;
+      }
+    }
+  }
+
+  private void send(ByteBuffer bb, int id) throws IOException {
+    bb.clear();
+    bb.putLong(id).put(UTF8.encode(lines.get(id)));
+    bb.flip();
+    dc.send(bb, server);
+    sent++;
+  }
+
+  private long timeout(long rto, int attempt) {
+    return Math.min(MAX_RTO, rto << Math.min(attempt, MAX_BACKOFF));
+  }
+
+  public void launch() throws IOException, InterruptedException {
+    sender = Thread.currentThread();
+    var listenerThread = Thread.ofPlatform().start(this::listenerThreadRun);
+    var bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    var start = System.nanoTime();
+    try {
+      var next = 0;
+      while (!answersLog.isComplete()) {
+        var now = System.nanoTime();
+        while (next < nbLines && inFlight.get() < window) {
+          inFlight.incrementAndGet();
+          sentAt.set(next, now);
+          send(bb, next);
+          timers.add(new Timer(now + rto, next, 0));
+          next++;
+        }
+
+        for (Timer timer; (timer = timers.peek()) != null && timer.deadline - now <= 0; ) {
+          timers.poll();
+          if (answersLog.isAnswered(timer.id)) {
+            continue;
+          }
+          sentAt.set(timer.id, RESENT);
+          send(bb, timer.id);
+          resent++;
+          var attempt = timer.attempt + 1;
+          timers.add(new Timer(now + timeout(rto, attempt), timer.id, attempt));
+        }
+
+        var timer = timers.peek();
+        if (timer != null) {
+          LockSupport.parkNanos(timer.deadline - now);
+        }
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      dc.close();
+      listenerThread.join();
+    }
+
+    var elapsed = System.nanoTime() - start;
+    Files.write(Path.of(outFilename), Arrays.asList(upperCaseLines), UTF8, CREATE, WRITE, TRUNCATE_EXISTING);
+    System.out.printf("%d lines in %d ms (%.0f lines/s), window %d%n", nbLines,
+        TimeUnit.NANOSECONDS.toMillis(elapsed), nbLines / (elapsed / 1e9), window);
+    System.out.println("Datagrams sent: " + sent + " (" + resent + " resent), final RTO: "
+        + TimeUnit.NANOSECONDS.toMicros(rto) + " us");
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 5) {
+      usage();
+      return;
+    }
+
+    var inFilename = args[0];
+    var outFilename = args[1];
+    var window = Integer.parseInt(args[2]);
+    var server = new InetSocketAddress(args[3], Integer.parseInt(args[4]));
+
+    // Read all lines of inFilename opened in UTF-8
+    var lines = Files.readAllLines(Path.of(inFilename), UTF8);
+
+    // Create client with the parameters and launch it
+    new ClientIdUpperCaseUDPWindow(lines, outFilename, window, server).launch();
+  }
+
+  /**
+   * Lock-free bitmap of the answered lines, the bits are only set by the
+   * listener thread and read by both threads.
+   */
+  private static class AnswersLog {
+    private final AtomicLongArray answered;
+    private final AtomicInteger remaining;
+
+    AnswersLog(int size) {
+      this.answered = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+      this.remaining = new AtomicInteger(size);
+    }
+
+    /**
+     * @return true if the line was not already answered
+     */
+    boolean validate(int id) {
+      var mask = 1L << id;
+      if ((answered.getAndAccumulate(id >>> 6, mask, (word, bit) -> word | bit) & mask) != 0) {
+        return false;
+      }
+      remaining.decrementAndGet();
+      return true;
+    }
+
+    boolean isAnswered(int id) {
+      return (answered.get(id >>> 6) & (1L << id)) != 0;
+    }
+
+    boolean isComplete() {
+      return remaining.get() == 0;
+    }
+  }
+}
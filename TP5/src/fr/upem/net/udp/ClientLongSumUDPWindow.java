@@ -0,0 +1,234 @@
+package fr.upem.net.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Client of ServerLongSumUDP that keeps up to window OPs in flight and sends
+ * again the ones that are not acknowledged after RTO. In sack mode the OPs are
+ * sent with OP_SACK and acknowledged by the SACKs of the server, otherwise
+ * every OP is acknowledged by its own ACK. Once all the OPs are acknowledged,
+ * the last one is sent again every RTO until the RES arrives, since the server
+ * answers it with the RES again.
+ *
+ * The loss of the network is simulated with a seeded Random: every datagram
+ * sent or received is dropped with the given probability.
+ */
+public class ClientLongSumUDPWindow {
+  private static final Logger logger = Logger.getLogger(ClientLongSumUDPWindow.class.getName());
+  private static final int BUFFER_SIZE = 1024;
+  private static final long RTO = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long GIVE_UP = TimeUnit.SECONDS.toNanos(10); // without any datagram from the server
+
+  private static final byte OP = 1;
+  private static final byte ACK = 2;
+  private static final byte RES = 3;
+  private static final byte OP_SACK = 4;
+  private static final byte SACK = 5;
+
+  private final InetSocketAddress serverAddress;
+  private final long[] operands;
+  private final int window;
+  private final double loss;
+  private final Random random;
+  private final boolean sack;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private final BitSet acked;
+  private final long[] sentAt;
+  private final ArrayDeque<Integer> inFlight = new ArrayDeque<>(); // by time of the last send
+  private int next; // first operand never sent
+  private int nbInFlight;
+  private int ackedPrefix; // the operands before ackedPrefix are acknowledged
+
+  private long datagramsSent;
+  private long datagramsResent;
+  private long datagramsReceived;
+  private long lostOut;
+  private long lostIn;
+
+  public ClientLongSumUDPWindow(InetSocketAddress serverAddress, int nbOperands, int window, double loss, long seed,
+      boolean sack) {
+    if (nbOperands < 1 || window < 1 || loss < 0 || loss >= 1) {
+      throw new IllegalArgumentException();
+    }
+    this.serverAddress = serverAddress;
+    this.window = window;
+    this.loss = loss;
+    this.random = new Random(seed);
+    this.sack = sack;
+    this.operands = random.longs(nbOperands, -1_000_000, 1_000_000).toArray();
+    this.acked = new BitSet(nbOperands);
+    this.sentAt = new long[nbOperands];
+  }
+
+  public static void usage() {
+    System.out.println("Usage : ClientLongSumUDPWindow host port nbOperands window loss seed ack|sack");
+  }
+
+  private void send(DatagramChannel dc, long sessionId, int pos) throws IOException {
+    datagramsSent++;
+    sentAt[pos] = System.nanoTime();
+    inFlight.add(pos);
+    if (random.nextDouble() < loss) {
+      lostOut++;
+      return;
+    }
+    buffer.clear();
+    buffer.put(sack ? OP_SACK : OP);
+    buffer.putLong(sessionId);
+    buffer.putLong(pos);
+    buffer.putLong(operands.length);
+    buffer.putLong(operands[pos]);
+    buffer.flip();
+    if (dc.send(buffer, serverAddress) == 0) {
+      lostOut++; // same as a loss, it will be sent again
+    }
+  }
+
+  /**
+   * Acknowledges the operands in [first, end[ that were sent.
+   */
+  private void acknowledge(long first, long end) {
+    end = Math.min(end, next);
+    for (var pos = acked.nextClearBit((int) Math.max(0, first)); pos < end; pos = acked.nextClearBit(pos + 1)) {
+      acked.set(pos);
+      nbInFlight--;
+    }
+    while (ackedPrefix < next && acked.get(ackedPrefix)) {
+      ackedPrefix++;
+    }
+  }
+
+  /**
+   * @return the sum if the datagram in buffer is the RES of the session, null otherwise
+   */
+  private Long treatDatagram(long sessionId) {
+    if (buffer.remaining() < Byte.BYTES + 2 * Long.BYTES) {
+      logger.info("Invalid packet format. Dropping...");
+      return null;
+    }
+    var op = buffer.get();
+    if (buffer.getLong() != sessionId) {
+      return null;
+    }
+    switch (op) {
+      case ACK -> {
+        var pos = buffer.getLong();
+        acknowledge(pos, pos + 1);
+      }
+      case SACK -> {
+        acknowledge(ackedPrefix, buffer.getLong());
+        if (buffer.remaining() < Integer.BYTES) {
+          return null;
+        }
+        var nbRanges = buffer.getInt();
+        for (var i = 0; i < nbRanges && buffer.remaining() >= 2 * Long.BYTES; i++) {
+          acknowledge(buffer.getLong(), buffer.getLong());
+        }
+      }
+      case RES -> {
+        return buffer.getLong();
+      }
+      default -> logger.info("Unsupported operator. Dropping...");
+    }
+    return null;
+  }
+
+  public void launch() throws IOException {
+    var sessionId = random.nextLong() & Long.MAX_VALUE;
+    var start = System.nanoTime();
+    var lastReceived = start;
+    Long result = null;
+    try (var dc = DatagramChannel.open(); var selector = Selector.open()) {
+      dc.configureBlocking(false);
+      dc.register(selector, SelectionKey.OP_READ);
+      while (result == null) {
+        var now = System.nanoTime();
+        if (now - lastReceived > GIVE_UP) {
+          logger.severe("No answer from " + serverAddress + ", giving up");
+          return;
+        }
+
+        while (nbInFlight < window && next < operands.length) {
+          send(dc, sessionId, next++);
+          nbInFlight++;
+        }
+        for (Integer head; (head = inFlight.peek()) != null; ) {
+          if (acked.get(head)) {
+            inFlight.poll();
+            continue;
+          }
+          if (now - sentAt[head] < RTO) {
+            break;
+          }
+          inFlight.poll();
+          datagramsResent++;
+          send(dc, sessionId, head);
+        }
+        var last = operands.length - 1;
+        if (ackedPrefix == operands.length && now - Math.max(lastReceived, sentAt[last]) >= RTO) {
+          // the RES was lost
+          datagramsResent++;
+          send(dc, sessionId, last);
+        }
+
+        var head = inFlight.peek();
+        var timeout = head == null ? TimeUnit.NANOSECONDS.toMillis(RTO)
+            : Math.max(1, TimeUnit.NANOSECONDS.toMillis(sentAt[head] + RTO - now));
+        selector.select(timeout);
+        selector.selectedKeys().clear();
+
+        for (;;) {
+          buffer.clear();
+          if (dc.receive(buffer) == null) {
+            break;
+          }
+          lastReceived = System.nanoTime();
+          datagramsReceived++;
+          if (random.nextDouble() < loss) {
+            lostIn++;
+            continue;
+          }
+          buffer.flip();
+          result = treatDatagram(sessionId);
+          if (result != null) {
+            break;
+          }
+        }
+      }
+    }
+
+    var elapsed = System.nanoTime() - start;
+    var expected = 0L;
+    for (var operand : operands) {
+      expected += operand;
+    }
+    System.out.println((sack ? "SACK" : "ACK") + " mode, " + operands.length + " operands, window " + window
+        + ", loss " + loss);
+    System.out.println("Sum: " + result + (result == expected ? " (correct)" : " (expected " + expected + ")"));
+    System.out.println("Completed in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    System.out.println("Datagrams sent: " + datagramsSent + " (" + datagramsResent + " resent, " + lostOut
+        + " lost), received: " + datagramsReceived + " (" + lostIn + " lost)");
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 7 || !args[6].equals("ack") && !args[6].equals("sack")) {
+      usage();
+      return;
+    }
+
+    var serverAddress = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+    new ClientLongSumUDPWindow(serverAddress, Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+        Double.parseDouble(args[4]), Long.parseLong(args[5]), args[6].equals("sack")).launch();
+  }
+}
@@ -1,11 +1,16 @@
 package fr.upem.net.udp;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.logging.Logger;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -15,8 +20,13 @@ public class ServerIdUpperCaseUDP {
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private static final int BUFFER_SIZE = 1024;
 
+    private static final int LOG_SAMPLE = 1_024; // one datagram out of LOG_SAMPLE is printed in fast mode
+    private static final int LOG_QUEUE_SIZE = 256;
+
     private final DatagramChannel dc;
     private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private SocketAddress pendingDst; // of the answer in buffer that could not be sent yet, in fast mode
+    private long treated;
 
     public ServerIdUpperCaseUDP(int port) throws IOException {
         dc = DatagramChannel.open();
@@ -54,12 +64,138 @@ public class ServerIdUpperCaseUDP {
         }
     }
 
+    /**
+     * Prints the sampled messages from a daemon thread, the messages are
+     * dropped rather than slowing the server down if it cannot keep up.
+     */
+    private static class SampledLog {
+        private final ArrayBlockingQueue<String> queue = new ArrayBlockingQueue<>(LOG_QUEUE_SIZE);
+
+        SampledLog() {
+            Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    for (;;) {
+                        System.out.println(queue.take());
+                    }
+                } catch (InterruptedException e) {
+                    // exits with the server
+                }
+            });
+        }
+
+        void log(String message) {
+            queue.offer(message);
+        }
+    }
+
+    /**
+     * Upper cases in place the message of the datagram in buffer (read-mode,
+     * positioned after the id) when it is pure ASCII. Otherwise the message is
+     * upper cased through a String as in serve.
+     */
+    private void upperCaseInPlace() {
+        var start = buffer.position();
+        var limit = buffer.limit();
+        for (var i = start; i < limit; i++) {
+            var b = buffer.get(i);
+            if (b < 0) { // not ASCII
+                var msg = UTF8.decode(buffer).toString();
+                var encoded = UTF8.encode(msg.toUpperCase());
+                if (encoded.remaining() > buffer.capacity() - start) {
+                    buffer.position(0).limit(start); // the answer would not fit, only the id is sent back
+                    return;
+                }
+                buffer.limit(buffer.capacity()).position(start);
+                buffer.put(encoded).flip();
+                return;
+            }
+            if (b >= 'a' && b <= 'z') {
+                buffer.put(i, (byte) (b - ('a' - 'A')));
+            }
+        }
+        buffer.position(0);
+    }
+
+    /**
+     * Treats all the received datagrams and stops if the answer of one of them
+     * cannot be sent now.
+     */
+    private void doRead(SelectionKey key, SampledLog log) throws IOException {
+        for (;;) {
+            buffer.clear();
+            var dst = dc.receive(buffer);
+            if (dst == null) {
+                return;
+            }
+            buffer.flip();
+            if (buffer.remaining() < Long.BYTES) {
+                continue;
+            }
+
+            var id = buffer.getLong();
+            upperCaseInPlace();
+            if (++treated % LOG_SAMPLE == 0) {
+                log.log("Sending " + (buffer.remaining() - Long.BYTES) + " bytes to " + dst + " with id " + id
+                        + " (" + treated + " datagrams treated)");
+            }
+            dc.send(buffer, dst);
+            if (buffer.hasRemaining()) {
+                pendingDst = dst;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private void doWrite(SelectionKey key) throws IOException {
+        dc.send(buffer, pendingDst);
+        if (buffer.hasRemaining()) {
+            return;
+        }
+        pendingDst = null;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * High-throughput version of serve: the datagrams are read in nonblocking
+     * mode until none is left after each wakeup, ASCII messages are upper cased
+     * in place and only one datagram out of LOG_SAMPLE is printed, by another
+     * thread.
+     */
+    public void serveFast() throws IOException {
+        var log = new SampledLog();
+        try (var selector = Selector.open()) {
+            dc.configureBlocking(false);
+            dc.register(selector, SelectionKey.OP_READ);
+            while (!Thread.interrupted()) {
+                try {
+                    selector.select(key -> {
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                doWrite(key);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                doRead(key, log);
+                            }
+                        } catch (IOException ioe) {
+                            throw new UncheckedIOException(ioe);
+                        }
+                    });
+                } catch (UncheckedIOException tunneled) {
+                    throw tunneled.getCause();
+                }
+            }
+        } finally {
+            dc.close();
+        }
+    }
+
     public static void usage() {
-        System.out.println("Usage : ServerIdUpperCaseUDP port");
+        System.out.println("Usage : ServerIdUpperCaseUDP port [fast]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && (args.length != 2 || !args[1].equals("fast"))) {
             usage();
             return;
         }
@@ -72,7 +208,12 @@ public class ServerIdUpperCaseUDP {
         }
 
         try {
-            new ServerIdUpperCaseUDP(port).serve();
+            var server = new ServerIdUpperCaseUDP(port);
+            if (args.length == 2) {
+                server.serveFast();
+            } else {
+                server.serve();
+            }
         } catch (BindException e) {
             logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
         }
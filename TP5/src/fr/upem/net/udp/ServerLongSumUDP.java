@@ -1,51 +1,237 @@
 package fr.upem.net.udp;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.DatagramChannel;
-import java.util.BitSet;
-import java.util.HashMap;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 public class ServerLongSumUDP {
   private static final Logger logger = Logger.getLogger(ServerLongSumUDP.class.getName());
   private static final int BUFFER_SIZE = 1024;
 
-  private final DatagramChannel dc;
-  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
-
   private static final int OP = 1;
   private static final int ACK = 2;
   private static final int RES = 3;
 
+  /*
+   * Extension: a client that sends its operands with OP_SACK instead of OP gets
+   * no ACK per operand but a SACK from time to time:
+   * SACK (byte), sessionId (long), acked (long), n (int), n ranges (long first, long end)
+   * meaning that the operands before acked and the operands in [first, end[
+   * are received. The RES is unchanged and acknowledges all the operands.
+   */
+  private static final int OP_SACK = 4;
+  private static final int SACK = 5;
+
+  private static final int SACK_EVERY = 32; // OP_SACKs of a session answered by one SACK
+  private static final long SACK_DELAY = TimeUnit.MILLISECONDS.toNanos(2); // before sending a pending SACK
+  private static final int SACK_SCAN = 1 << 16; // operands after the acked ones described by a SACK
+  private static final int MAX_RANGES = (BUFFER_SIZE - Byte.BYTES - 2 * Long.BYTES - Integer.BYTES) / (2 * Long.BYTES);
+
+  private static final long SESSION_TTL = 60_000; // in ms, since the last packet of the session
+  private static final long MAX_SESSION_MEMORY = 64L * 1024 * 1024; // in bytes, for all the sessions
+  private static final long SESSION_OVERHEAD = 128; // in bytes, approximate size of a session without its bitmap
+  private static final long STATS_PERIOD = 10_000; // in ms
+  private static final int MAX_QUEUED = 1_024; // datagrams waiting for room in the send buffer, per worker
+
+  private record SessionKey(InetSocketAddress address, long sessionId) { }
+
+  /**
+   * The received operands of a session are recorded in a bitmap split in
+   * chunks of CHUNK_BITS bits: a chunk is only allocated when its first
+   * operand is received and is released once all its operands are received,
+   * so a large session only holds the chunks being filled. The number of
+   * missing operands is kept along the bitmap so that both duplicates and
+   * completion are detected in constant time.
+   */
   private static class Session {
-    private final BitSet status;
+    private static final int CHUNK_SHIFT = 16;
+    private static final int CHUNK_BITS = 1 << CHUNK_SHIFT;
+    private static final long[] FULL = new long[0]; // chunk whose operands are all received
+
+    private final SessionKey key;
+    private final int totalOper;
+    private long[][] chunks; // null once the session is complete
+    private int[] chunkMissing;
+    private int missing;
+    private long allocated; // in bytes, by the chunks
     private long sum;
+    private long lastAccess;
+    private int acked; // all the operands before acked are received
+    private int unacked; // OP_SACKs received since the last SACK
+    private boolean sackScheduled;
 
-    Session(long totalOper) {
-      if (totalOper < 0) {
+    Session(SessionKey key, long totalOper, long now) {
+      if (totalOper < 1) {
         throw new IllegalArgumentException();
       }
 
-      this.status = new BitSet(Math.toIntExact(totalOper));
-      this.status.flip(0, Math.toIntExact(totalOper));
+      this.key = key;
+      this.totalOper = Math.toIntExact(totalOper);
+      var nbChunks = chunkCount(this.totalOper);
+      this.chunks = new long[nbChunks][];
+      this.chunkMissing = new int[nbChunks];
+      for (var i = 0; i < nbChunks; i++) {
+        chunkMissing[i] = chunkSize(i);
+      }
+      this.missing = this.totalOper;
+      this.lastAccess = now;
+    }
+
+    private static int chunkCount(long totalOper) {
+      return (int) ((totalOper + CHUNK_BITS - 1) >>> CHUNK_SHIFT);
+    }
+
+    private int chunkSize(int chunk) {
+      return Math.min(CHUNK_BITS, totalOper - (chunk << CHUNK_SHIFT));
+    }
+
+    /**
+     * @return an estimation of the memory used by a new session of totalOper operands
+     */
+    static long footprint(long totalOper) {
+      return SESSION_OVERHEAD + chunkCount(totalOper) * (long) (Long.BYTES + Integer.BYTES);
+    }
+
+    /**
+     * @return an estimation of the memory used by a session of totalOper operands
+     *         when all its chunks are allocated
+     */
+    static long maxFootprint(long totalOper) {
+      return footprint(totalOper) + (totalOper + Long.SIZE - 1) / Long.SIZE * Long.BYTES;
+    }
+
+    long footprint() {
+      return chunks == null ? SESSION_OVERHEAD : footprint(totalOper) + allocated;
+    }
+
+    boolean isValidPosition(long idPosOper) {
+      return idPosOper >= 0 && idPosOper < totalOper;
+    }
+
+    /**
+     * @return the bytes that tryAdd will allocate to record the operand idPosOper
+     */
+    long chunkFootprint(long idPosOper) {
+      if (chunks == null) {
+        return 0;
+      }
+      var index = (int) idPosOper >>> CHUNK_SHIFT;
+      return chunks[index] == null ? (chunkSize(index) + Long.SIZE - 1) / Long.SIZE * Long.BYTES : 0;
     }
 
     boolean tryAdd(long idPosOper, long opValue) {
-      if (!status.get(Math.toIntExact(idPosOper))) {
+      if (chunks == null) {
+        return false;
+      }
+
+      var pos = (int) idPosOper;
+      var index = pos >>> CHUNK_SHIFT;
+      var chunk = chunks[index];
+      if (chunk == FULL) {
+        return false;
+      }
+      if (chunk == null) {
+        chunk = new long[(chunkSize(index) + Long.SIZE - 1) / Long.SIZE];
+        chunks[index] = chunk;
+        allocated += (long) chunk.length * Long.BYTES;
+      }
+      var word = (pos & (CHUNK_BITS - 1)) >>> 6;
+      var mask = 1L << pos; // shifts are modulo 64
+      if ((chunk[word] & mask) != 0) {
         return false;
       }
 
-      status.set(Math.toIntExact(idPosOper), false);
+      chunk[word] |= mask;
       sum += opValue;
+      if (--chunkMissing[index] == 0) {
+        chunks[index] = FULL;
+        allocated -= (long) chunk.length * Long.BYTES;
+      }
+      if (--missing == 0) {
+        chunks = null; // only the sum is kept to answer the late OPs
+        chunkMissing = null;
+        acked = totalOper;
+      }
+      while (acked < totalOper && isReceived(acked)) {
+        acked++;
+      }
 
       return true;
     }
 
+    private boolean isReceived(int pos) {
+      return (word(pos >>> 6) & (1L << pos)) != 0;
+    }
+
+    /**
+     * @return the bits of the operands 64 * index to 64 * index + 63, a bit is set if its operand is received
+     */
+    private long word(int index) {
+      if (chunks == null) {
+        return -1L;
+      }
+      var chunk = chunks[index >>> (CHUNK_SHIFT - 6)];
+      if (chunk == FULL) {
+        return -1L;
+      }
+      return chunk == null ? 0 : chunk[index & (CHUNK_BITS / Long.SIZE - 1)];
+    }
+
+    /**
+     * @return the first operand at or after from that is received (or missing
+     *         if received is false), or limit if there is none before limit
+     */
+    private int next(int from, int limit, boolean received) {
+      var index = from >>> 6;
+      var bits = (received ? word(index) : ~word(index)) & (-1L << from);
+      while (bits == 0) {
+        index++;
+        if ((long) index << 6 >= limit) {
+          return limit;
+        }
+        bits = received ? word(index) : ~word(index);
+      }
+      return (int) Math.min(limit, ((long) index << 6) + Long.numberOfTrailingZeros(bits));
+    }
+
+    /**
+     * Writes in buffer the ranges [first, end[ of received operands after the
+     * acked ones, limited to maxRanges ranges and to the SACK_SCAN operands
+     * after acked.
+     *
+     * @return the number of ranges written
+     */
+    int putRanges(ByteBuffer buffer, int maxRanges) {
+      var limit = (int) Math.min(totalOper, (long) acked + SACK_SCAN);
+      var count = 0;
+      for (var pos = acked; count < maxRanges; count++) {
+        var first = next(pos, limit, true);
+        if (first == limit) {
+          break;
+        }
+        pos = next(first, limit, false);
+        buffer.putLong(first).putLong(pos);
+      }
+      return count;
+    }
+
     boolean isComplete() {
-      return status.cardinality() == 0;
+      return missing == 0;
     }
 
     long sum() {
@@ -53,8 +239,67 @@ public class ServerLongSumUDP {
     }
   }
 
+  /**
+   * Sessions of all the clients. The sessions in progress and the complete
+   * ones are kept in two maps in access order, so the least recently used ones
+   * are always at the head of each map: the expired sessions are removed from
+   * the heads.
+   *
+   * A complete session keeps only its sum until it expires, so that a client
+   * that lost the RES gets it again when it sends its OPs again. When a new
+   * session or a new chunk would not fit in MAX_SESSION_MEMORY, the least
+   * recently used complete sessions are evicted. A session in progress is
+   * never evicted, since the client does not send again the operands that were
+   * acknowledged: if the memory is still short, the new session or the operand
+   * is refused, and the client will send it again later.
+   */
   private static class SessionHolder {
-    private final HashMap<InetSocketAddress, HashMap<Long, Session>> sessionOfAdress = new HashMap<>();
+    private final LinkedHashMap<SessionKey, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<SessionKey, Session> completed = new LinkedHashMap<>(16, 0.75f, true);
+    private final long ttl;
+    private final long maxMemory;
+    private long memory;
+    private long expirations;
+    private long evictions;
+    private long refusals;
+
+    SessionHolder(long ttl, long maxMemory) {
+      this.ttl = ttl;
+      this.maxMemory = maxMemory;
+    }
+
+    private void remove(Iterator<Session> iterator, Session session) {
+      iterator.remove();
+      memory -= session.footprint();
+    }
+
+    /**
+     * Removes the sessions of map that were not accessed during the last ttl ms.
+     */
+    private void expire(LinkedHashMap<SessionKey, Session> map, long now) {
+      for (var iterator = map.values().iterator(); iterator.hasNext(); ) {
+        var session = iterator.next();
+        if (now - session.lastAccess < ttl) {
+          return; // the next sessions were accessed more recently
+        }
+        remove(iterator, session);
+        expirations++;
+      }
+    }
+
+    /**
+     * Removes the least recently used complete sessions until size bytes are
+     * available.
+     *
+     * @return true if size bytes are available
+     */
+    private boolean makeRoom(long size) {
+      for (var iterator = completed.values().iterator(); memory + size > maxMemory && iterator.hasNext(); ) {
+        remove(iterator, iterator.next());
+        evictions++;
+      }
+      return memory + size <= maxMemory;
+    }
 
     /**
      * Opens a new session if it does not already exist, and returns it.
@@ -62,115 +307,432 @@ public class ServerLongSumUDP {
      * @param dst       The destination address of the session
      * @param sessionId The id of the session
      * @param totalOper Total of operations
-     * @return The session
+     * @param now       The current time in ms
+     * @return The session, or null if a new session with totalOper operands cannot be opened
      */
-    Session getOrCreateSession(InetSocketAddress dst, long sessionId, long totalOper) {
-      var sessions = sessionOfAdress.computeIfAbsent(dst, k -> new HashMap<>());
-      return sessions.computeIfAbsent(sessionId, k -> new Session(totalOper));
+    Session getOrCreateSession(InetSocketAddress dst, long sessionId, long totalOper, long now) {
+      expire(sessions, now);
+      expire(completed, now);
+      var key = new SessionKey(dst, sessionId);
+      var session = sessions.get(key);
+      if (session == null) {
+        session = completed.get(key);
+      }
+      if (session != null) {
+        session.lastAccess = now;
+        return session;
+      }
+
+      if (totalOper < 1 || totalOper > Integer.MAX_VALUE || Session.maxFootprint(totalOper) > maxMemory
+          || !makeRoom(Session.footprint(totalOper))) {
+        refusals++;
+        return null;
+      }
+      session = new Session(key, totalOper, now);
+      sessions.put(key, session);
+      memory += session.footprint();
+      return session;
     }
 
     /**
-     * Adds a new operand to a session.
+     * Makes room for the chunk that recording the operand idPosOper of session
+     * needs, if any.
      *
-     * @param dst       The destination address of the session
-     * @param sessionId The id of the session
-     * @param idPosOper The id of the operand
-     * @param totalOper The total of operations
-     * @param opValue   The value of the operand
-     * @return True if the session could complete, false otherwise
+     * @return false if the operand must be refused for lack of memory
      */
-    boolean tryAdd(InetSocketAddress dst, long sessionId, long idPosOper, long totalOper, long opValue) {
-      var session = getOrCreateSession(dst, sessionId, totalOper);
-      session.tryAdd(idPosOper, opValue);
+    boolean reserve(Session session, long idPosOper) {
+      if (makeRoom(session.chunkFootprint(idPosOper))) {
+        return true;
+      }
+      refusals++;
+      return false;
+    }
 
-      return session.isComplete();
+    /**
+     * Adds an operand to a session returned by getOrCreateSession, once
+     * reserve has accepted it.
+     *
+     * @return true if the operand was not already received
+     */
+    boolean tryAdd(Session session, long idPosOper, long opValue) {
+      var before = session.footprint();
+      var added = session.tryAdd(idPosOper, opValue);
+      memory += session.footprint() - before;
+      if (added && session.isComplete()) {
+        sessions.remove(session.key);
+        completed.put(session.key, session);
+      }
+      return added;
     }
-  }
 
-  void submitAck(InetSocketAddress dst, long sessionId, long idPosOper) throws IOException {
-    buffer.clear();
-    buffer.put((byte) ACK);
-    buffer.putLong(sessionId);
-    buffer.putLong(idPosOper);
-    buffer.flip();
-    dc.send(buffer, dst);
+    String stats() {
+      return "Sessions: " + sessions.size() + " in progress, " + completed.size() + " complete, " + memory
+          + " bytes, " + expirations + " expired, " + evictions + " evicted, " + refusals + " refused";
+    }
   }
 
-  void submitResult(InetSocketAddress dst, long sessionId, long result) throws IOException {
-    buffer.clear();
-    buffer.put((byte) RES);
-    buffer.putLong(sessionId);
-    buffer.putLong(result);
-    buffer.flip();
-    dc.send(buffer, dst);
-  }
+  private record PendingSack(InetSocketAddress dst, long sessionId, Session session, long deadline) { }
 
-  public void serve() throws IOException {
-    try {
-      var sessions = new SessionHolder();
-      while (!Thread.interrupted()) {
-        buffer.clear();
-        var dst = (InetSocketAddress) dc.receive(buffer);
-        buffer.flip();
+  /**
+   * Receiver thread: each worker has its own channel, bound on the shared port
+   * with SO_REUSEPORT, its own buffer and its own sessions. The kernel
+   * dispatches the datagrams among the channels by hashing the address of the
+   * client, so all the OPs of a session reach the same worker and the
+   * SessionHolder needs no lock.
+   */
+  private static class Worker {
+    private final DatagramChannel dc;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final SessionHolder sessions;
+    private final ArrayDeque<PendingSack> pendingSacks = new ArrayDeque<>(); // by deadline
+    // circular queue of the datagrams the socket could not send yet
+    private final ByteBuffer[] queue = new ByteBuffer[MAX_QUEUED];
+    private final InetSocketAddress[] queueDst = new InetSocketAddress[MAX_QUEUED];
+    private int queueHead;
+    private int queueSize;
+    private int maxQueueSize;
+    private long drops;
+    private SelectionKey key;
 
-        if (buffer.remaining() < Long.BYTES * 4 + Byte.BYTES) {
-          logger.info("Invalid packet format. Dropping...");
-          continue;
-        }
+    Worker(DatagramChannel dc, long maxMemory) throws IOException {
+      this.dc = dc;
+      this.selector = Selector.open();
+      this.sessions = new SessionHolder(SESSION_TTL, maxMemory);
+      var slots = ByteBuffer.allocateDirect(MAX_QUEUED * BUFFER_SIZE);
+      for (var i = 0; i < MAX_QUEUED; i++) {
+        queue[i] = slots.slice(i * BUFFER_SIZE, BUFFER_SIZE);
+      }
+    }
 
-        var op = buffer.get();
-        if (op != OP) {
-          logger.info("Unsupported operator. Dropping...");
-          continue;
+    /**
+     * Sends the datagram built in buffer, or queues it if the socket cannot
+     * send it now. The datagram is dropped if the queue is full, the client
+     * will send its OP again.
+     */
+    private void send(InetSocketAddress dst) throws IOException {
+      buffer.flip();
+      if (queueSize == 0 && dc.send(buffer, dst) != 0) {
+        return;
+      }
+      if (queueSize == MAX_QUEUED) {
+        drops++;
+        return;
+      }
+      var tail = (queueHead + queueSize) % MAX_QUEUED;
+      queue[tail].clear().put(buffer).flip();
+      queueDst[tail] = dst;
+      queueSize++;
+      maxQueueSize = Math.max(maxQueueSize, queueSize);
+    }
+
+    /**
+     * Reads are suspended while the queue may not hold the answers of one
+     * more OP (an ACK and a RES), and writes are requested while it is not
+     * empty.
+     */
+    private void updateInterestOps() {
+      var interestOps = 0;
+      if (queueSize <= MAX_QUEUED - 2) {
+        interestOps |= SelectionKey.OP_READ;
+      }
+      if (queueSize > 0) {
+        interestOps |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(interestOps);
+    }
+
+    void submitAck(InetSocketAddress dst, long sessionId, long idPosOper) throws IOException {
+      buffer.clear();
+      buffer.put((byte) ACK);
+      buffer.putLong(sessionId);
+      buffer.putLong(idPosOper);
+      send(dst);
+    }
+
+    void submitResult(InetSocketAddress dst, long sessionId, long result) throws IOException {
+      buffer.clear();
+      buffer.put((byte) RES);
+      buffer.putLong(sessionId);
+      buffer.putLong(result);
+      send(dst);
+    }
+
+    /**
+     * Sends SACK, sessionId, acked, the number of ranges and the ranges of
+     * operands received after acked.
+     */
+    void submitSack(InetSocketAddress dst, long sessionId, Session session) throws IOException {
+      buffer.clear();
+      buffer.put((byte) SACK);
+      buffer.putLong(sessionId);
+      buffer.putLong(session.acked);
+      var countPosition = buffer.position();
+      buffer.putInt(0);
+      buffer.putInt(countPosition, session.putRanges(buffer, MAX_RANGES));
+      send(dst);
+      session.unacked = 0;
+    }
+
+    /**
+     * Answers an OP_SACK: a SACK is sent after SACK_EVERY OP_SACKs of the
+     * session or SACK_DELAY after the first one, whichever comes first. A
+     * duplicate means that the client missed a SACK, it is answered at once.
+     */
+    private void scheduleSack(InetSocketAddress dst, long sessionId, Session session, boolean duplicate,
+        long nanoNow) throws IOException {
+      if (++session.unacked >= SACK_EVERY || duplicate) {
+        submitSack(dst, sessionId, session);
+        return;
+      }
+      if (!session.sackScheduled) {
+        session.sackScheduled = true;
+        pendingSacks.add(new PendingSack(dst, sessionId, session, nanoNow + SACK_DELAY));
+      }
+    }
+
+    private void flushSacks(long nanoNow) throws IOException {
+      for (PendingSack pending; (pending = pendingSacks.peek()) != null && pending.deadline - nanoNow <= 0; ) {
+        pendingSacks.poll();
+        var session = pending.session;
+        session.sackScheduled = false;
+        if (session.unacked > 0 && !session.isComplete()) {
+          submitSack(pending.dst, pending.sessionId, session);
         }
+      }
+    }
+
+    private void treatPacket(InetSocketAddress dst, long now) throws IOException {
+      if (buffer.remaining() < Long.BYTES * 4 + Byte.BYTES) {
+        logger.info("Invalid packet format. Dropping...");
+        return;
+      }
+
+      var op = buffer.get();
+      if (op != OP && op != OP_SACK) {
+        logger.info("Unsupported operator. Dropping...");
+        return;
+      }
+
+      var sessionId = buffer.getLong();
+      var idPosOper = buffer.getLong();
+      var totalOper = buffer.getLong();
+      var opValue = buffer.getLong();
+      logger.info(() -> "Received " + op + " " + sessionId + " " + idPosOper + " " + totalOper + " " + opValue + " from " + dst);
 
-        var sessionId = buffer.getLong();
-        var idPosOper = buffer.getLong();
-        var totalOper = buffer.getLong();
-        var opValue = buffer.getLong();
-        logger.info("Received " + op + " " + sessionId + " " + idPosOper + " " + totalOper + " " + opValue + " from " + dst + "\nSending ACK to " + dst + ".");
+      var session = sessions.getOrCreateSession(dst, sessionId, totalOper, now);
+      if (session == null) {
+        logger.info(() -> "Session " + sessionId + " of " + totalOper + " operands refused. Dropping...");
+        return;
+      }
+      if (!session.isValidPosition(idPosOper)) {
+        logger.info("Invalid operand position. Dropping...");
+        return;
+      }
+      if (!sessions.reserve(session, idPosOper)) {
+        // not acknowledged, the client will send it again
+        logger.info(() -> "No memory for operand " + idPosOper + " of session " + sessionId + ". Dropping...");
+        return;
+      }
 
+      if (op == OP) {
         try {
           submitAck(dst, sessionId, idPosOper);
         } catch (IOException e) {
           logger.severe("Failed to send ACK to " + dst + ".");
-          continue;
+          return;
+        }
+      }
+
+      var added = sessions.tryAdd(session, idPosOper, opValue);
+      if (session.isComplete()) {
+        logger.info(() -> "Session " + sessionId + " is complete. Sending result (RES) to " + dst + ".");
+        try {
+          submitResult(dst, sessionId, session.sum());
+        } catch (IOException e) {
+          logger.severe("Failed to send result (RES) to " + dst + ".");
+          // continue;
+        }
+      } else if (op == OP_SACK) {
+        try {
+          scheduleSack(dst, sessionId, session, !added, System.nanoTime());
+        } catch (IOException e) {
+          logger.severe("Failed to send SACK to " + dst + ".");
+        }
+      }
+    }
+
+    /**
+     * Treats all the received OPs, as long as the queue has room for their answers.
+     */
+    private void doRead() throws IOException {
+      var now = System.currentTimeMillis();
+      while (queueSize <= MAX_QUEUED - 2) {
+        buffer.clear();
+        var dst = (InetSocketAddress) dc.receive(buffer);
+        if (dst == null) {
+          break;
         }
+        buffer.flip();
+        treatPacket(dst, now);
+      }
+    }
 
-        if (sessions.tryAdd(dst, sessionId, idPosOper, totalOper, opValue)) {
-          var result = sessions.getOrCreateSession(dst, sessionId, totalOper).sum();
+    /**
+     * Sends the queued datagrams until the socket cannot take more.
+     */
+    private void doWrite() throws IOException {
+      while (queueSize > 0) {
+        if (dc.send(queue[queueHead], queueDst[queueHead]) == 0) {
+          return;
+        }
+        queueDst[queueHead] = null;
+        queueHead = (queueHead + 1) % MAX_QUEUED;
+        queueSize--;
+      }
+    }
+
+    private void treatKey(SelectionKey key) {
+      try {
+        if (key.isValid() && key.isWritable()) {
+          doWrite();
+        }
+        if (key.isValid() && key.isReadable()) {
+          doRead();
+        }
+      } catch (IOException ioe) {
+        throw new UncheckedIOException(ioe);
+      }
+    }
+
+    void serve() throws IOException {
+      dc.configureBlocking(false);
+      key = dc.register(selector, SelectionKey.OP_READ);
+      var lastStats = System.currentTimeMillis();
+      while (!Thread.interrupted()) {
+        var next = pendingSacks.peek();
+        var timeout = next == null ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()));
+        try {
+          selector.select(this::treatKey, timeout);
+        } catch (UncheckedIOException tunneled) {
+          throw tunneled.getCause();
+        }
+        flushSacks(System.nanoTime());
+        updateInterestOps();
+
+        var now = System.currentTimeMillis();
+        if (now - lastStats >= STATS_PERIOD) {
+          logger.info(Thread.currentThread().getName() + " " + sessions.stats() + ", " + queueSize
+              + " datagrams queued (max " + maxQueueSize + "), " + drops + " dropped");
+          lastStats = now;
+        }
+      }
+    }
+  }
 
-          logger.info("Session " + sessionId + " is complete. Sending result (RES) to " + dst + ".");
+  private final List<Worker> workers;
+
+  /**
+   * Starts the workers and waits for them, the workers are interrupted if the
+   * calling thread is interrupted or if one of them fails.
+   */
+  public void serve() throws IOException {
+    var threads = new ArrayList<Thread>(workers.size());
+    var failure = new AtomicReference<IOException>();
+    var caller = Thread.currentThread();
+    try {
+      for (var i = 0; i < workers.size(); i++) {
+        var worker = workers.get(i);
+        threads.add(Thread.ofPlatform().name("worker-" + i).start(() -> {
           try {
-            submitResult(dst, sessionId, result);
+            worker.serve();
+          } catch (ClosedByInterruptException e) {
+            // the server is stopping
           } catch (IOException e) {
-            logger.severe("Failed to send result (RES) to " + dst + ".");
-            // continue;
+            failure.compareAndSet(null, e);
+            caller.interrupt();
           }
-        }
+        }));
+      }
+      for (var thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      if (failure.get() == null) {
+        Thread.currentThread().interrupt();
       }
     } finally {
-      dc.close();
+      for (var thread : threads) {
+        thread.interrupt();
+      }
+      for (var worker : workers) {
+        worker.dc.close();
+        worker.selector.close();
+      }
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+
+  /**
+   * Binds nbWorkers channels on port. If the platform does not support
+   * SO_REUSEPORT, the server falls back on a single worker.
+   */
+  public ServerLongSumUDP(int port, int nbWorkers) throws IOException {
+    if (nbWorkers < 1) {
+      throw new IllegalArgumentException();
+    }
+    if (nbWorkers > 1) {
+      try (var probe = DatagramChannel.open()) {
+        if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+          logger.warning("SO_REUSEPORT is not supported, falling back on a single worker");
+          nbWorkers = 1;
+        }
+      }
+    }
+
+    workers = new ArrayList<>(nbWorkers);
+    try {
+      for (var i = 0; i < nbWorkers; i++) {
+        var dc = DatagramChannel.open();
+        try {
+          workers.add(new Worker(dc, MAX_SESSION_MEMORY / nbWorkers));
+        } catch (IOException e) {
+          dc.close();
+          throw e;
+        }
+        if (nbWorkers > 1) {
+          dc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        dc.bind(new InetSocketAddress(port));
+      }
+    } catch (IOException e) {
+      for (var worker : workers) {
+        worker.dc.close();
+        worker.selector.close();
+      }
+      throw e;
     }
+    logger.info("ServerLongSumUDP started on port " + port + " with " + nbWorkers + " worker(s)");
   }
 
   public ServerLongSumUDP(int port) throws IOException {
-    dc = DatagramChannel.open();
-    dc.bind(new InetSocketAddress(port));
-    logger.info("ServerBetterUpperCaseUDP started on port " + port);
+    this(port, 1);
   }
 
   public static void usage() {
-    System.out.println("Usage : ServerIdUpperCaseUDP port");
+    System.out.println("Usage : ServerLongSumUDP port [nbWorkers]");
   }
 
   public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
+    if (args.length != 1 && args.length != 2) {
       usage();
       return;
     }
 
     var port = Integer.parseInt(args[0]);
+    var nbWorkers = args.length == 2 ? Integer.parseInt(args[1]) : 1;
 
     if (!(port >= 1024) & port <= 65535) {
       logger.severe("The port number must be between 1024 and 65535");
@@ -178,7 +740,7 @@ public class ServerLongSumUDP {
     }
 
     try {
-      new ServerLongSumUDP(port).serve();
+      new ServerLongSumUDP(port, nbWorkers).serve();
     } catch (BindException e) {
       logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
     }
@@ -0,0 +1,38 @@
+package fr.upem.net.udp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transformation applied by an echo server to each datagram before sending it
+ * back. It works in place, on the bytes between the position and the limit of
+ * the buffer, and may change the limit.
+ */
+@FunctionalInterface
+public interface DatagramTransform {
+    /**
+     * The datagram is sent back as it was received.
+     */
+    DatagramTransform IDENTITY = datagram -> { };
+
+    /**
+     * Every byte of the datagram is incremented by 1 (255 becomes 0). The bytes
+     * are incremented 8 at a time in a long: the 7 low bits of each byte are
+     * incremented together, which cannot carry from one byte into the next,
+     * then the high bit of each byte is flipped where the low bits carried.
+     */
+    DatagramTransform PLUS_ONE = datagram -> {
+        final long lowBits = 0x7F7F_7F7F_7F7F_7F7FL;
+        final long ones = 0x0101_0101_0101_0101L;
+        var i = datagram.position();
+        var limit = datagram.limit();
+        for (; i <= limit - Long.BYTES; i += Long.BYTES) {
+            var word = datagram.getLong(i);
+            datagram.putLong(i, ((word & lowBits) + ones) ^ (word & ~lowBits));
+        }
+        for (; i < limit; i++) {
+            datagram.put(i, (byte) (datagram.get(i) + 1));
+        }
+    };
+
+    void transform(ByteBuffer datagram);
+}
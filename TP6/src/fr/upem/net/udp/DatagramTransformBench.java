@@ -0,0 +1,78 @@
+package fr.upem.net.udp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the byte by byte copy that ServerEchoPlus used to do, from the
+ * receive buffer into a second buffer, with the in place PLUS_ONE transform,
+ * on direct buffers as the servers use them. Each variant is warmed up before
+ * being timed, and the checksum keeps the JIT from removing the work.
+ */
+public class DatagramTransformBench {
+    private static final int ROUNDS = 5;
+    private static final long ROUND_DURATION = TimeUnit.SECONDS.toNanos(1);
+
+    private interface Variant {
+        void run(ByteBuffer in, ByteBuffer out);
+    }
+
+    private static void byteByByte(ByteBuffer in, ByteBuffer out) {
+        in.rewind();
+        out.clear();
+        while (in.hasRemaining()) {
+            out.put((byte) (in.get() + 1));
+        }
+        out.flip();
+    }
+
+    private static void inPlace(ByteBuffer in, ByteBuffer out) {
+        in.rewind();
+        DatagramTransform.PLUS_ONE.transform(in);
+    }
+
+    /**
+     * @return the number of datagrams transformed per second in the last round
+     */
+    private static double measure(Variant variant, ByteBuffer in, ByteBuffer out) {
+        var perSecond = 0.0;
+        for (var round = 0; round < ROUNDS; round++) {
+            var count = 0L;
+            var start = System.nanoTime();
+            long elapsed;
+            do {
+                for (var i = 0; i < 1_000; i++) {
+                    variant.run(in, out);
+                }
+                count += 1_000;
+            } while ((elapsed = System.nanoTime() - start) < ROUND_DURATION);
+            perSecond = count * 1e9 / elapsed;
+        }
+        return perSecond;
+    }
+
+    private static void check() {
+        var datagram = ByteBuffer.allocateDirect(259);
+        for (var i = 0; i < datagram.capacity(); i++) {
+            datagram.put((byte) i);
+        }
+        DatagramTransform.PLUS_ONE.transform(datagram.flip());
+        for (var i = 0; i < datagram.capacity(); i++) {
+            if (datagram.get(i) != (byte) (i + 1)) {
+                throw new AssertionError("Byte " + i + " is " + datagram.get(i));
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        check();
+        for (var size : new int[] { 16, 128, 1024 }) {
+            var in = ByteBuffer.allocateDirect(size);
+            var out = ByteBuffer.allocateDirect(size);
+            var byteByByte = measure(DatagramTransformBench::byteByByte, in, out);
+            var inPlace = measure(DatagramTransformBench::inPlace, in, out);
+            System.out.printf("%4d bytes: byte by byte %,12.0f/s, in place SWAR %,12.0f/s (x%.1f), checksum %d%n",
+                    size, byteByByte, inPlace, inPlace / byteByByte, in.get(0) + out.get(0));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.Objects;
 import java.util.logging.Logger;
 
 public class ServerEcho {
@@ -19,9 +20,14 @@ public class ServerEcho {
     private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
     private SocketAddress sender;
     private final int port;
+    private final DatagramTransform transform;
 
-    public ServerEcho(int port) throws IOException {
+    /**
+     * Echo server that applies transform to each datagram before sending it back.
+     */
+    public ServerEcho(int port, DatagramTransform transform) throws IOException {
         this.port = port;
+        this.transform = Objects.requireNonNull(transform);
         selector = Selector.open();
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
@@ -29,6 +35,10 @@ public class ServerEcho {
         dc.register(selector, SelectionKey.OP_READ);
     }
 
+    public ServerEcho(int port) throws IOException {
+        this(port, DatagramTransform.IDENTITY);
+    }
+
     public void serve() throws IOException {
         logger.info("ServerEcho started on port " + port);
         while (!Thread.interrupted()) {
@@ -71,6 +81,7 @@ public class ServerEcho {
         // Attention, si l'envoi échoue dans le doWrite, on va re-flip, ce qui va poser un énorme problème évident
         // On flip donc dans le read car on n'y passe systématiquement qu'une fois
         buffer.flip();
+        transform.transform(buffer);
     }
 
     private void doWrite(SelectionKey key) throws IOException {
@@ -2,113 +2,278 @@ package fr.upem.net.udp.nonblocking;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.BindException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
+import com.sun.management.UnixOperatingSystemMXBean;
+import fr.upem.net.udp.DatagramTransform;
+
+/**
+ * Echo server listening on a range of ports. The ports are spread over
+ * several workers, each one with its own selector thread and one buffer for
+ * all its ports.
+ *
+ * A datagram is echoed as soon as it is received. Only when the socket cannot
+ * send it now is a copy queued on its port, which then waits for OP_WRITE
+ * until its queue is empty; the datagrams received meanwhile are queued
+ * behind, or dropped if the queue is full.
+ */
 public class ServerEchoMultiport {
     private static final Logger logger = Logger.getLogger(ServerEchoMultiport.class.getName());
     private static final int BUFFER_SIZE = 1024;
-    private final Selector selector;
+    private static final int MAX_PENDING = 8; // datagrams queued per port
+    private static final int MAX_BATCH = 64; // datagrams echoed per port and per wakeup
+    private static final int RESERVED_FDS = 64; // left for the selectors, the JDK and the logs
 
-    public ServerEchoMultiport(int portBegin, int portEnd) throws IOException {
-        if ((portBegin < 1024 || portBegin > 65535) && (portEnd < 1024 || portEnd > 65535)) {
-            throw new IllegalArgumentException("Port out of range [1024, 65535]");
-        }
+    private record Pending(ByteBuffer datagram, SocketAddress address) { }
 
-        if (portBegin > portEnd) { throw new IllegalArgumentException("Port range is invalid."); }
-
-        selector = Selector.open();
-        for (int i = portBegin; i <= portEnd; i++) {
-            try {
-                registerPort(i);
-            } catch (AlreadyBoundException abe) {
-                logger.severe("Port " + i + " unavailable.");
-            }
-        }
+    /**
+     * Datagrams of a port that could not be sent yet, only allocated while
+     * there are some.
+     */
+    private static class Context {
+        private final ArrayDeque<Pending> queue = new ArrayDeque<>();
     }
 
-    private static class Context {
+    private static class Worker {
+        private final Selector selector;
         private final ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
-        private SocketAddress address;
+        private final DatagramTransform transform;
+
+        private Worker(DatagramTransform transform) throws IOException {
+            this.transform = transform;
+            selector = Selector.open();
+        }
 
         private void doRead(SelectionKey key) throws IOException {
             var dc = (DatagramChannel) key.channel();
-            bb.clear();
+            for (var i = 0; i < MAX_BATCH; i++) {
+                bb.clear();
+                var address = dc.receive(bb);
+                if (address == null) {
+                    return;
+                }
+                bb.flip();
+                logger.fine(() -> "Received packet from " + address);
+                transform.transform(bb);
 
-            address = dc.receive(bb);
-            if (address == null) {
-                logger.warning("No packet received (No SocketAddress).");
-                return;
+                var context = (Context) key.attachment();
+                if (context == null) {
+                    dc.send(bb, address);
+                    if (!bb.hasRemaining()) {
+                        continue;
+                    }
+                    context = new Context();
+                    key.attach(context);
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                if (context.queue.size() >= MAX_PENDING) {
+                    logger.fine(() -> "Too many packets pending, dropping packet from " + address);
+                    continue;
+                }
+                context.queue.add(new Pending(ByteBuffer.allocate(bb.remaining()).put(bb).flip(), address));
             }
-
-            bb.flip();
-            logger.info("Received packet from " + address);
-            key.interestOps(SelectionKey.OP_WRITE);
         }
 
         private void doWrite(SelectionKey key) throws IOException {
             var dc = (DatagramChannel) key.channel();
+            var context = (Context) key.attachment();
+            for (Pending pending; (pending = context.queue.peek()) != null; ) {
+                dc.send(pending.datagram, pending.address);
+                if (pending.datagram.hasRemaining()) {
+                    return;
+                }
+                context.queue.poll();
+            }
+            key.attach(null);
+            key.interestOps(SelectionKey.OP_READ);
+        }
 
-            dc.send(bb, address);
-            if (bb.hasRemaining()) {
-                logger.warning("Could not send packet to " + address);
-                return;
+        private void treatKey(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    doWrite(key);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    doRead(key);
+                }
+            } catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
             }
+        }
 
-            key.interestOps(SelectionKey.OP_READ);
+        private void serve() throws IOException {
+            while (!Thread.interrupted()) {
+                try {
+                    selector.select(this::treatKey);
+                } catch (UncheckedIOException tunneled) {
+                    throw tunneled.getCause();
+                }
+            }
         }
-    }
 
-    private void registerPort(int port) throws IOException, AlreadyBoundException {
-        var dc = DatagramChannel.open();
-        dc.bind(new InetSocketAddress(port));
-        dc.configureBlocking(false);
-        dc.register(selector, SelectionKey.OP_READ, new Context());
+        private void close() {
+            for (var key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore exception
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore exception
+            }
+        }
     }
 
-    public void serve() throws IOException {
-        logger.info("ServerEchoMultiport started.");
+    private final List<Worker> workers;
+    private int nbPorts;
 
-        while (!Thread.interrupted()) {
-            try {
-                selector.select(this::treatKey);
-            } catch (UncheckedIOException tunneled) {
-                throw tunneled.getCause();
+    /**
+     * Echo server on the ports from portBegin to portEnd that applies transform
+     * to each datagram before sending it back.
+     */
+    public ServerEchoMultiport(int portBegin, int portEnd, int nbWorkers, DatagramTransform transform)
+            throws IOException {
+        Objects.requireNonNull(transform);
+        if (portBegin < 1024 || portBegin > 65535 || portEnd < 1024 || portEnd > 65535) {
+            throw new IllegalArgumentException("Port out of range [1024, 65535]");
+        }
+
+        if (portBegin > portEnd) { throw new IllegalArgumentException("Port range is invalid."); }
+
+        if (nbWorkers < 1) { throw new IllegalArgumentException("At least one worker is needed."); }
+
+        var maxPorts = availableFileDescriptors() - RESERVED_FDS;
+        if (portEnd - portBegin + 1 > maxPorts) {
+            portEnd = (int) Math.max(portBegin - 1, portBegin + maxPorts - 1);
+            logger.warning("Not enough file descriptors (see ulimit -n), only the ports up to " + portEnd
+                    + " are served.");
+        }
+
+        nbWorkers = Math.max(1, Math.min(nbWorkers, portEnd - portBegin + 1));
+        workers = new ArrayList<>(nbWorkers);
+        try {
+            for (var i = 0; i < nbWorkers; i++) {
+                workers.add(new Worker(transform));
+            }
+            for (int i = portBegin; i <= portEnd; i++) {
+                try {
+                    registerPort(i, workers.get(i % nbWorkers));
+                    nbPorts++;
+                } catch (BindException be) {
+                    logger.severe("Port " + i + " unavailable.");
+                } catch (IOException ioe) {
+                    // most likely out of file descriptors, see ulimit -n
+                    logger.severe("Cannot open port " + i + ", the ports from " + i + " are not served: "
+                            + ioe.getMessage());
+                    break;
+                }
             }
+        } catch (IOException | RuntimeException e) {
+            workers.forEach(Worker::close);
+            throw e;
         }
     }
 
-    private void treatKey(SelectionKey key) {
-        var context = (Context) key.attachment();
+    public ServerEchoMultiport(int portBegin, int portEnd, int nbWorkers) throws IOException {
+        this(portBegin, portEnd, nbWorkers, DatagramTransform.IDENTITY);
+    }
 
+    public ServerEchoMultiport(int portBegin, int portEnd) throws IOException {
+        this(portBegin, portEnd, 1);
+    }
+
+    /**
+     * @return the number of files that this process can still open, or
+     *         Long.MAX_VALUE if it is not known
+     */
+    private static long availableFileDescriptors() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean os) {
+            return os.getMaxFileDescriptorCount() - os.getOpenFileDescriptorCount();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private void registerPort(int port, Worker worker) throws IOException {
+        var dc = DatagramChannel.open();
         try {
-            if (key.isValid() && key.isWritable()) {
-                context.doWrite(key);
+            dc.bind(new InetSocketAddress(port));
+            dc.configureBlocking(false);
+            dc.register(worker.selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            dc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts the workers and waits for them, the workers are interrupted if the
+     * calling thread is interrupted or if one of them fails.
+     */
+    public void serve() throws IOException {
+        logger.info("ServerEchoMultiport started on " + nbPorts + " ports with " + workers.size() + " worker(s).");
+        var threads = new ArrayList<Thread>(workers.size());
+        var failure = new AtomicReference<IOException>();
+        var caller = Thread.currentThread();
+        try {
+            for (var i = 0; i < workers.size(); i++) {
+                var worker = workers.get(i);
+                threads.add(Thread.ofPlatform().name("worker-" + i).start(() -> {
+                    try {
+                        worker.serve();
+                    } catch (ClosedByInterruptException e) {
+                        // the server is stopping
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                        caller.interrupt();
+                    }
+                }));
             }
-            if (key.isValid() && key.isReadable()) {
-                context.doRead(key);
+            for (var thread : threads) {
+                thread.join();
             }
-        } catch (IOException ioe) {
-            throw new UncheckedIOException(ioe);
+        } catch (InterruptedException e) {
+            if (failure.get() == null) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            for (var thread : threads) {
+                thread.interrupt();
+            }
+            workers.forEach(Worker::close);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
         }
     }
 
     public static void usage() {
-        System.out.println("Usage : ServerEchoMultiport port_range_begin port_range_end");
+        System.out.println("Usage : ServerEchoMultiport port_range_begin port_range_end [nbWorkers]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             usage();
             return;
         }
 
-        new ServerEchoMultiport(Integer.parseInt(args[0]), Integer.parseInt(args[1])).serve();
+        var nbWorkers = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        new ServerEchoMultiport(Integer.parseInt(args[0]), Integer.parseInt(args[1]), nbWorkers).serve();
     }
 }
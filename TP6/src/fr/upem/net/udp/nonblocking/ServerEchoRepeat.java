@@ -8,17 +8,58 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.logging.Logger;
 
+/**
+ * Echo server with repetitions: a datagram (int count + content) is answered
+ * by count datagrams holding the content.
+ *
+ * The requests are queued per client and the clients with pending requests
+ * take turns, one repetition each, while the server keeps reading. Each
+ * wakeup sends repetitions until the socket is full. The number of requests
+ * and of repetitions pending are bounded, in total and per client, the
+ * requests beyond are dropped.
+ */
 public class ServerEchoRepeat {
     private static final Logger logger = Logger.getLogger(ServerEchoRepeat.class.getName());
-    private final int BUFFER_SIZE = 1024;
+    private static final int BUFFER_SIZE = 1024;
+    private static final int MAX_JOBS = 10_000;
+    private static final int MAX_JOBS_PER_CLIENT = 16;
+    private static final long MAX_PENDING_REPEATS = 100_000_000;
+    private static final long MAX_PENDING_REPEATS_PER_CLIENT = 1_000_000; // so that one client cannot fill the global bound
+    private static final int MAX_BATCH = 4_096; // datagrams sent per wakeup, so that reads are not delayed
     private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
     private final DatagramChannel dc;
     private final Selector selector;
-    private SocketAddress sender;
+    private final SelectionKey key;
     private final int port;
-    private int nbRepeatLeft;
+
+    private final HashMap<SocketAddress, Client> clients = new HashMap<>(); // with pending jobs
+    private final ArrayDeque<Client> turns = new ArrayDeque<>(); // same clients, in the order they are served
+    private int jobs;
+    private long pendingRepeats;
+
+    private static class Job {
+        private final ByteBuffer content;
+        private int nbRepeatLeft;
+
+        private Job(ByteBuffer content, int nbRepeatLeft) {
+            this.content = content;
+            this.nbRepeatLeft = nbRepeatLeft;
+        }
+    }
+
+    private static class Client {
+        private final SocketAddress address;
+        private final ArrayDeque<Job> jobs = new ArrayDeque<>();
+        private long pendingRepeats;
+
+        private Client(SocketAddress address) {
+            this.address = address;
+        }
+    }
 
     public ServerEchoRepeat(int port) throws IOException {
         this.port = port;
@@ -26,7 +67,7 @@ public class ServerEchoRepeat {
         dc = DatagramChannel.open();
         dc.bind(new InetSocketAddress(port));
         dc.configureBlocking(false);
-        dc.register(selector, SelectionKey.OP_READ);
+        key = dc.register(selector, SelectionKey.OP_READ);
     }
 
     public void serve() throws IOException {
@@ -37,49 +78,90 @@ public class ServerEchoRepeat {
             } catch (UncheckedIOException tunneled) {
                 throw tunneled.getCause();
             }
+            key.interestOps(turns.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
     }
 
     private void treatKey(SelectionKey key) {
         try {
             if (key.isValid() && key.isWritable()) {
-                doWrite(key);
+                doWrite();
             }
             if (key.isValid() && key.isReadable()) {
-                doRead(key);
+                doRead();
             }
         } catch (IOException ioe) {
             throw new UncheckedIOException(ioe);
         }
     }
 
-    private void doRead(SelectionKey key) throws IOException {
-        buffer.clear();
-        sender = dc.receive(buffer);
-        if (sender == null) {
-            logger.warning("No packet received (No SocketAddress).");
-            return;
-        }
+    private void doRead() throws IOException {
+        for (;;) {
+            buffer.clear();
+            var sender = dc.receive(buffer);
+            if (sender == null) {
+                return;
+            }
 
-        buffer.flip();
-        if (buffer.remaining() < Integer.BYTES) {
-            logger.warning("Invalid packet format. Dropping...");
-            return;
+            buffer.flip();
+            if (buffer.remaining() < Integer.BYTES) {
+                logger.warning("Invalid packet format. Dropping...");
+                continue;
+            }
+            var nbRepeat = buffer.getInt();
+            if (nbRepeat < 1) {
+                logger.warning("Invalid number of repetitions. Dropping...");
+                continue;
+            }
+            var client = clients.get(sender);
+            var clientRepeats = client == null ? 0 : client.pendingRepeats;
+            if (jobs >= MAX_JOBS || pendingRepeats + nbRepeat > MAX_PENDING_REPEATS
+                    || clientRepeats + nbRepeat > MAX_PENDING_REPEATS_PER_CLIENT
+                    || client != null && client.jobs.size() >= MAX_JOBS_PER_CLIENT) {
+                logger.warning("Too many repetitions pending. Dropping...");
+                continue;
+            }
+
+            if (client == null) {
+                client = new Client(sender);
+                clients.put(sender, client);
+                turns.add(client);
+            }
+            client.jobs.add(new Job(ByteBuffer.allocate(buffer.remaining()).put(buffer).flip(), nbRepeat));
+            jobs++;
+            pendingRepeats += nbRepeat;
+            client.pendingRepeats += nbRepeat;
         }
-        nbRepeatLeft = buffer.getInt();
-        key.interestOps(SelectionKey.OP_WRITE);
     }
 
-    private void doWrite(SelectionKey key) throws IOException {
-        dc.send(buffer, sender);
-        if (buffer.hasRemaining()) {
-            logger.warning("Could not send packet to " + sender);
-            return;
-        }
+    /**
+     * Sends the next repetition of each client in turn until the socket is
+     * full or MAX_BATCH datagrams have been sent.
+     */
+    private void doWrite() throws IOException {
+        for (var i = 0; i < MAX_BATCH && !turns.isEmpty(); i++) {
+            var client = turns.peek();
+            var job = client.jobs.peek();
+            var content = job.content.rewind();
+            var empty = !content.hasRemaining();
+            if (dc.send(content, client.address) == 0 && !empty) {
+                return; // the socket is full, the repetition is sent on the next wakeup
+            }
+            // send also returns 0 for an empty datagram sent, so an empty repetition
+            // may be lost when the socket is full, as any datagram on the network
 
-        buffer.flip();
-        if (--nbRepeatLeft < 1) {
-            key.interestOps(SelectionKey.OP_READ);
+            turns.poll();
+            pendingRepeats--;
+            client.pendingRepeats--;
+            if (--job.nbRepeatLeft == 0) {
+                client.jobs.poll();
+                jobs--;
+                if (client.jobs.isEmpty()) {
+                    clients.remove(client.address);
+                    continue;
+                }
+            }
+            turns.add(client);
         }
     }
 
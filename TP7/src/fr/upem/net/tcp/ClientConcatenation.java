@@ -2,19 +2,24 @@ package fr.upem.net.tcp;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Scanner;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 public class ClientConcatenation {
     private static final Logger logger = Logger.getLogger(ClientConcatenation.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
+    private static final int BUFFER_SIZE = 8_192;
 
     private static boolean checkResult(List<String> list, String result) {
         return String.join(",", list).equals(result);
@@ -48,54 +53,176 @@ public class ClientConcatenation {
      * @return Concat of all the given strings
      */
     private static String requestConcatForList(SocketChannel sc, List<String> strings) throws IOException {
-        var dst = sc.getRemoteAddress();
-        var encodedStrings = strings.stream()
-                .map(UTF8::encode)
-                .toList();
+        var result = new StringBuilder();
+        if (!requestConcat(sc, strings.size(), strings.iterator(), result)) {
+            logger.warning("Invalid format, dropping...");
+            return null;
+        }
+        return result.toString();
+    }
 
-        var nbStrings = encodedStrings.size();
-        var concatString = encodedStrings.stream().mapToInt(Buffer::remaining).sum();
-        var senderSize = Integer.BYTES + (nbStrings * Integer.BYTES) + concatString;
-        var sendBuffer = ByteBuffer.allocate(senderSize);
-        var receiveBuffer = ByteBuffer.allocate(Integer.BYTES);
+    /**
+     * Sends count strings taken from strings and appends the concatenation sent
+     * back by the server to out. The request is encoded and the reply decoded
+     * through one buffer of BUFFER_SIZE bytes, so the memory used does not depend
+     * on the number of strings nor on the size of the reply.
+     *
+     * @param sc      Server channel
+     * @param count   Number of strings to send
+     * @param strings Iterator giving at least count strings
+     * @param out     Where the reply of the server is appended
+     * @return false if the protocol is not followed by the server
+     */
+    static boolean requestConcat(SocketChannel sc, int count, Iterator<String> strings, Appendable out) throws IOException {
+        var buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        logger.info("About to send " + count + " strings to " + sc.getRemoteAddress());
+        buffer.putInt(count);
+        for (var i = 0; i < count; i++) {
+            var encodedString = UTF8.encode(strings.next());
+            if (buffer.remaining() < Integer.BYTES) {
+                flush(sc, buffer);
+            }
+            buffer.putInt(encodedString.remaining());
+            while (encodedString.hasRemaining()) {
+                if (!buffer.hasRemaining()) {
+                    flush(sc, buffer);
+                }
+                var tmpLimit = encodedString.limit();
+                encodedString.limit(encodedString.position() + Math.min(encodedString.remaining(), buffer.remaining()));
+                buffer.put(encodedString);
+                encodedString.limit(tmpLimit);
+            }
+        }
+        flush(sc, buffer);
 
-        logger.info("About to send " + nbStrings + " strings for a total size of " + senderSize);
-        sendBuffer.putInt(nbStrings);
-        for (var encodedString : encodedStrings) {
-            sendBuffer.putInt(encodedString.remaining());
-            sendBuffer.put(encodedString);
+        buffer.limit(Integer.BYTES);
+        if (!ClientEOS.readFully(sc, buffer)) {
+            return false;
+        }
+        var missing = buffer.flip().getInt();
+        if (missing < 0) {
+            return false;
         }
+        logger.info("Size of response: " + missing);
+
+        var decoder = UTF8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        var chars = CharBuffer.allocate(BUFFER_SIZE);
+        buffer.clear();
+        while (missing > 0) {
+            buffer.limit(Math.min(buffer.capacity(), buffer.position() + missing));
+            var read = sc.read(buffer);
+            if (read == -1) {
+                return false;
+            }
+            missing -= read;
+            buffer.flip();
+            decode(decoder, buffer, chars, missing == 0, out);
+            buffer.compact(); // keeps the bytes of a character split between two reads
+        }
+        decoder.flush(chars);
+        out.append(chars.flip());
+        return true;
+    }
 
-        sendBuffer.flip();
-        logger.info("Sending " + sendBuffer.remaining() + " bytes to " + dst);
-        sc.write(sendBuffer);
+    /**
+     * Writes the content of buffer (in write-mode) on sc and clears it
+     */
+    private static void flush(SocketChannel sc, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            sc.write(buffer);
+        }
+        buffer.clear();
+    }
 
-        if (!ClientEOS.readFully(sc, receiveBuffer)) {
-            logger.warning("Invalid format, dropping...");
-            return null;
+    /**
+     * Decodes the bytes of in (in read-mode) and appends the characters to out,
+     * using chars as scratch space.
+     */
+    private static void decode(CharsetDecoder decoder, ByteBuffer in, CharBuffer chars, boolean endOfInput,
+                               Appendable out) throws IOException {
+        for (;;) {
+            var result = decoder.decode(in, chars, endOfInput);
+            out.append(chars.flip());
+            chars.clear();
+            if (result.isUnderflow()) {
+                return;
+            }
         }
+    }
 
-        receiveBuffer.flip();
-        var receiverSize = receiveBuffer.getInt();
-        if (receiverSize < 0) {
-            logger.warning("Invalid format, dropping...");
-            return null;
+    /**
+     * Counts the characters appended to it
+     */
+    private static class CharCounter implements Appendable {
+        private long count;
+
+        @Override
+        public Appendable append(CharSequence csq) {
+            count += csq.length();
+            return this;
         }
-        logger.info("Size of response: " + receiverSize);
-        receiveBuffer = ByteBuffer.allocate(receiverSize);
 
-        if (!ClientEOS.readFully(sc, receiveBuffer)) {
-            logger.warning("Invalid format, dropping...");
-            return null;
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            count += end - start;
+            return this;
         }
 
-        receiveBuffer.flip();
-        return UTF8.decode(receiveBuffer).toString();
+        @Override
+        public Appendable append(char c) {
+            count++;
+            return this;
+        }
+    }
+
+    /**
+     * Sends count generated strings and checks the length of the reply, the reply
+     * itself is never stored. The server buffers the whole reply before sending
+     * it, so it must accept replies of that size: the generated strings are
+     * ASCII, one byte per char, e.g. about 74 MB for 5M strings, which the
+     * default limit of the nonblocking ServerConcatenation of TP11 accepts.
+     */
+    private static void streamGenerated(SocketChannel sc, int count) throws IOException {
+        var expected = Math.max(0, count - 1) + IntStream.range(0, count).mapToLong(i -> ("string-" + i).length()).sum();
+        var strings = IntStream.range(0, count).mapToObj(i -> "string-" + i).iterator();
+        var counter = new CharCounter();
+        boolean answered;
+        try {
+            answered = requestConcat(sc, count, strings, counter);
+        } catch (IOException e) {
+            answered = false; // the server closes the connection while the strings are sent
+        }
+        if (!answered) {
+            logger.warning("Connection with server lost, the server may refuse replies of " + expected + " bytes.");
+            return;
+        }
+        logger.info("Expect. " + expected + " chars\nReceiv. " + counter.count + " chars");
+        if (counter.count != expected) {
+            logger.warning("Oups! Something wrong happened!");
+            return;
+        }
+        logger.info("Everything seems ok");
+    }
+
+    private static void usage() {
+        System.out.println("Usage : ClientConcatenation host port [nbGeneratedStrings]");
     }
 
     public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 3) {
+            usage();
+            return;
+        }
         var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
         try (var sc = SocketChannel.open(server)) {
+            if (args.length == 3) {
+                streamGenerated(sc, Integer.parseInt(args[2]));
+                return;
+            }
+
             var strings = stringsFromUser();
 
             var result = requestConcatForList(sc, strings);
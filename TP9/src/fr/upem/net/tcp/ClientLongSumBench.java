@@ -0,0 +1,120 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Benchmark for the LongSum servers: nbClients connections send nbRequests
+ * requests of size longs each, one at a time, and the client reports the
+ * throughput and the latency percentiles.
+ *
+ * The same run can be made against the four servers of this package and against
+ * the nonblocking ServerLongSum of TP11. The servers of this package log every
+ * long they receive, so they should be started with the logging turned off
+ * (e.g. -Djava.util.logging.config.file pointing to a file containing ".level=OFF")
+ * for the comparison to be meaningful.
+ *
+ * IterativeLongSumServer is the baseline: it serves the connections one after
+ * the other, so its p50 is the cost of a request alone and its max latency is
+ * the time a client waits for all the clients served before it.
+ */
+public class ClientLongSumBench {
+    private static final Logger logger = Logger.getLogger(ClientLongSumBench.class.getName());
+    private static final int MAX_LATENCY_SAMPLES = 1_000_000;
+
+    private final InetSocketAddress server;
+    private final int nbClients;
+    private final int nbRequests;
+    private final int size;
+    private final Latencies latencies;
+    private final LongAdder errors = new LongAdder();
+
+    public ClientLongSumBench(InetSocketAddress server, int nbClients, int nbRequests, int size) {
+        if (nbClients < 1 || nbRequests < 1 || size < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.server = server;
+        this.nbClients = nbClients;
+        this.nbRequests = nbRequests;
+        this.size = size;
+        this.latencies = new Latencies((int) Math.min(MAX_LATENCY_SAMPLES, (long) nbClients * nbRequests));
+    }
+
+    private void clientRun() {
+        var random = new Random();
+        var request = ByteBuffer.allocate(Integer.BYTES + size * Long.BYTES);
+        var response = ByteBuffer.allocate(Long.BYTES);
+        var expected = 0L;
+        request.putInt(size);
+        for (var i = 0; i < size; i++) {
+            var value = random.nextLong();
+            request.putLong(value);
+            expected += value;
+        }
+
+        try (var sc = SocketChannel.open(server)) {
+            for (var i = 0; i < nbRequests; i++) {
+                var start = System.nanoTime();
+                request.flip();
+                while (request.hasRemaining()) {
+                    sc.write(request);
+                }
+                response.clear();
+                if (!ClientLongSum.readFully(sc, response)) {
+                    logger.warning("Connection closed by the server");
+                    errors.increment();
+                    return;
+                }
+                latencies.record(System.nanoTime() - start);
+                if (response.flip().getLong() != expected) {
+                    errors.increment();
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Connection lost: " + e.getMessage());
+            errors.increment();
+        }
+    }
+
+    public void launch() throws InterruptedException {
+        var threads = new ArrayList<Thread>(nbClients);
+        var start = System.nanoTime();
+        for (var i = 0; i < nbClients; i++) {
+            threads.add(Thread.ofPlatform().start(this::clientRun));
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        var elapsed = System.nanoTime() - start;
+
+        var total = (long) nbClients * nbRequests;
+        var percentiles = latencies.percentiles(50, 99, 100);
+        System.out.println(total + " requests of " + size + " longs in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+        System.out.println("Throughput: " + total * 1_000_000_000L / Math.max(1, elapsed) + " requests/s");
+        System.out.println("Latency p50: " + TimeUnit.NANOSECONDS.toMicros(percentiles[0]) + " us, p99: "
+                + TimeUnit.NANOSECONDS.toMicros(percentiles[1]) + " us, max: "
+                + TimeUnit.NANOSECONDS.toMicros(percentiles[2]) + " us");
+        System.out.println("Errors: " + errors.sum());
+    }
+
+    private static void usage() {
+        System.out.println("Usage : ClientLongSumBench host port nbClients nbRequests size");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 5) {
+            usage();
+            return;
+        }
+        var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        new ClientLongSumBench(server, Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]))
+                .launch();
+    }
+}
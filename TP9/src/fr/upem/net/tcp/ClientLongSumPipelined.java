@@ -0,0 +1,248 @@
+package fr.upem.net.tcp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * LongSum client sending many requests on the same connection without waiting
+ * for the replies. The server answers the requests of a connection in order, so
+ * a reader thread matches each reply with the oldest request in flight.
+ * At most window requests are in flight at the same time. Once the reader
+ * thread has stopped, no more request can be submitted.
+ */
+public class ClientLongSumPipelined {
+    private static final Logger logger = Logger.getLogger(ClientLongSumPipelined.class.getName());
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LATENCY_SAMPLES = 1_000_000;
+
+    private record Pending(long expected, long start) { }
+
+    private final SocketChannel sc;
+    private final int window;
+    private final ArrayDeque<Pending> inFlight;
+    private final ReentrantLock lock = new ReentrantLock();
+    // signaled when a reply is received and when the reader thread stops
+    private final Condition changed = lock.newCondition();
+    private boolean readerStopped; // guarded by lock
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Latencies latencies = new Latencies(MAX_LATENCY_SAMPLES);
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Thread reader;
+
+    public ClientLongSumPipelined(SocketChannel sc, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.sc = sc;
+        this.window = window;
+        this.inFlight = new ArrayDeque<>(window);
+        this.reader = Thread.ofPlatform().start(this::readerRun);
+    }
+
+    private void readerRun() {
+        var receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            for (;;) {
+                if (sc.read(receiveBuffer) == -1) {
+                    logger.info("Connection closed by the server");
+                    return;
+                }
+                receiveBuffer.flip();
+                while (receiveBuffer.remaining() >= Long.BYTES) {
+                    var sum = receiveBuffer.getLong();
+                    var pending = pollInFlight();
+                    if (pending == null) {
+                        logger.warning("Reply received for no request");
+                        errors.increment();
+                        continue;
+                    }
+                    latencies.record(System.nanoTime() - pending.start());
+                    if (sum != pending.expected()) {
+                        errors.increment();
+                    }
+                    received.increment();
+                }
+                receiveBuffer.compact();
+            }
+        } catch (AsynchronousCloseException e) {
+            logger.info("Reader thread stopped");
+        } catch (IOException e) {
+            logger.warning("IOException in reader thread: " + e.getMessage());
+        } finally {
+            lock.lock();
+            try {
+                readerStopped = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private Pending pollInFlight() {
+        lock.lock();
+        try {
+            var pending = inFlight.poll();
+            changed.signalAll();
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addInFlight(Pending pending) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight.size() == window && !readerStopped) {
+                changed.await();
+            }
+            if (readerStopped) {
+                throw new IOException("Reader thread stopped, no reply can be received anymore");
+            }
+            inFlight.add(pending);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a request without waiting for its reply. Blocks if window requests
+     * are already in flight. Throws an IOException if the reader thread has
+     * stopped.
+     *
+     * @param values the longs to sum
+     */
+    public void submit(long[] values) throws IOException, InterruptedException {
+        submit(LongBuffer.wrap(values));
+    }
+
+    /**
+     * Sends a request made of the remaining longs of values without waiting for
+     * its reply. Blocks if window requests are already in flight. The longs are
+     * copied in chunks, so the request can be bigger than the send buffer.
+     *
+     * @param values the longs to sum, consumed by this call
+     */
+    public void submit(LongBuffer values) throws IOException, InterruptedException {
+        var expected = 0L;
+        for (var i = values.position(); i < values.limit(); i++) {
+            expected += values.get(i);
+        }
+        addInFlight(new Pending(expected, System.nanoTime()));
+
+        sendBuffer.clear();
+        sendBuffer.putInt(values.remaining());
+        while (values.hasRemaining()) {
+            var count = Math.min(values.remaining(), sendBuffer.remaining() / Long.BYTES);
+            var tmpLimit = values.limit();
+            values.limit(values.position() + count);
+            sendBuffer.asLongBuffer().put(values);
+            values.limit(tmpLimit);
+            sendBuffer.position(sendBuffer.position() + count * Long.BYTES);
+
+            sendBuffer.flip();
+            while (sendBuffer.hasRemaining()) {
+                sc.write(sendBuffer);
+            }
+            sendBuffer.clear();
+        }
+        if (sendBuffer.position() > 0) { // empty request, only the size was put
+            sendBuffer.flip();
+            while (sendBuffer.hasRemaining()) {
+                sc.write(sendBuffer);
+            }
+        }
+    }
+
+    /**
+     * Waits for the replies of all the requests in flight (or for timeout ms) and
+     * stops the reader thread.
+     */
+    public void finish(long timeout) throws InterruptedException {
+        var remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            while (!inFlight.isEmpty() && !readerStopped && remaining > 0) {
+                remaining = changed.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+        try {
+            sc.shutdownOutput();
+        } catch (IOException e) {
+            // the reader will stop anyway
+        }
+        reader.join(timeout);
+    }
+
+    public long received() {
+        return received.sum();
+    }
+
+    public long errors() {
+        lock.lock();
+        try {
+            return errors.sum() + inFlight.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long[] percentiles(double... percentiles) {
+        return latencies.percentiles(percentiles);
+    }
+
+    private static void usage() {
+        System.out.println("Usage : ClientLongSumPipelined host port nbRequests size window");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 5) {
+            usage();
+            return;
+        }
+        var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        var nbRequests = Integer.parseInt(args[2]);
+        var size = Integer.parseInt(args[3]);
+        var window = Integer.parseInt(args[4]);
+
+        // a few distinct requests are enough, they are sent in round robin
+        var random = new Random();
+        var requests = new long[Math.min(nbRequests, 64)][];
+        for (var i = 0; i < requests.length; i++) {
+            requests[i] = random.longs(size).toArray();
+        }
+
+        try (var sc = SocketChannel.open(server)) {
+            var client = new ClientLongSumPipelined(sc, window);
+            var start = System.nanoTime();
+            for (var i = 0; i < nbRequests; i++) {
+                client.submit(requests[i % requests.length]);
+            }
+            client.finish(10_000);
+            var elapsed = System.nanoTime() - start;
+
+            var percentiles = client.percentiles(50, 99, 99.9);
+            System.out.println(client.received() + " replies for " + nbRequests + " requests of " + size + " longs in "
+                    + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+            System.out.println("Throughput: " + client.received() * 1_000_000_000L / Math.max(1, elapsed) + " requests/s");
+            System.out.println("Latency p50: " + TimeUnit.NANOSECONDS.toMicros(percentiles[0]) + " us, p99: "
+                    + TimeUnit.NANOSECONDS.toMicros(percentiles[1]) + " us, p99.9: "
+                    + TimeUnit.NANOSECONDS.toMicros(percentiles[2]) + " us");
+            System.out.println("Errors: " + client.errors());
+        }
+    }
+}
@@ -4,8 +4,15 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -13,60 +20,257 @@ public class FixedPrestartedLongSumServer {
 
     private static final Logger logger = Logger.getLogger(FixedPrestartedLongSumServer.class.getName());
     private static final int BUFFER_SIZE = 1024;
+    private static final int LATENCY_SAMPLES = 10_000;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 5_000; // in ms
     private final ServerSocketChannel serverSocketChannel;
-    private static final int NB_THREADS = 10;
+    private final int nbThreads;
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<Connection> connections = new ArrayList<>(); // connections.get(i) is served by workers.get(i)
+    private final AtomicInteger activeClients = new AtomicInteger();
+    private final LongAdder totalRequests = new LongAdder();
+    private final Latencies latencies = new Latencies(LATENCY_SAMPLES);
+    private volatile boolean draining;
+
+    /**
+     * The connection served by a worker, and whether a request is being served
+     * on it, so that a shutdown can close at once the connections waiting for
+     * their next request and let the others finish theirs.
+     */
+    private static class Connection {
+        private SocketChannel client; // guarded by this
+        private boolean busy; // guarded by this
+        private boolean closed; // guarded by this, set by closeIfIdle
+
+        synchronized boolean open(SocketChannel client) {
+            if (closed) {
+                return false;
+            }
+            this.client = client;
+            this.busy = false;
+            return true;
+        }
+
+        synchronized void release() {
+            client = null;
+            busy = false;
+        }
+
+        /**
+         * Marks the connection as waiting for its next request.
+         *
+         * @return false if the connection was closed by a shutdown
+         */
+        synchronized boolean idle() {
+            busy = false;
+            return !closed;
+        }
+
+        /**
+         * Marks the connection as serving a request, once its first byte is read.
+         *
+         * @return false if the connection was closed by a shutdown meanwhile
+         */
+        synchronized boolean busy() {
+            busy = !closed;
+            return busy;
+        }
+
+        /**
+         * Closes the connection if it is waiting for its next request, and
+         * refuses the next ones.
+         */
+        synchronized void closeIfIdle() {
+            closed = true;
+            if (client != null && !busy) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
 
     public FixedPrestartedLongSumServer(int port, int nbThreads) throws IOException {
         if (nbThreads < 1) { throw new IllegalArgumentException(); }
+        this.nbThreads = nbThreads;
         serverSocketChannel = ServerSocketChannel.open();
         serverSocketChannel.bind(new InetSocketAddress(port));
         logger.info(this.getClass().getName() + " starts on port " + port);
     }
 
     /**
-     * Iterative server main loop
+     * Starts the worker threads and the console thread, then waits for the
+     * workers to terminate (after a SHUTDOWN or SHUTDOWNNOW command).
      *
      * @throws IOException
      */
     public void launch() throws IOException, InterruptedException {
         logger.info("Server started");
 
-        for (int i = 0; i < NB_THREADS; i++) {
-            Thread.ofPlatform().start(() -> {
-                for (;;) {
-                    try {
-                        SocketChannel client = serverSocketChannel.accept();
-                        logger.info("Connection accepted from " + client.getRemoteAddress());
-                        try {
-                            serve(client);
-                        } catch (IOException ioe) {
-                            client.close();
+        for (int i = 0; i < nbThreads; i++) {
+            var connection = new Connection();
+            connections.add(connection);
+            workers.add(Thread.ofPlatform().start(() -> workerRun(connection)));
+        }
+        Thread.ofPlatform().daemon().start(this::consoleRun);
+
+        for (var worker : workers) {
+            worker.join();
+        }
+        silentlyClose(serverSocketChannel);
+        logger.info("Server stopped");
+    }
+
+    private void workerRun(Connection connection) {
+        while (!draining && !Thread.currentThread().isInterrupted()) {
+            SocketChannel client;
+            try {
+                client = serverSocketChannel.accept();
+            } catch (AsynchronousCloseException ace) {
+                // serverSocketChannel closed by the console, stop accepting
+                return;
+            } catch (IOException ioe) {
+                logger.log(Level.SEVERE, "Accept failed, closing the server", ioe);
+                silentlyClose(serverSocketChannel);
+                return;
+            }
+
+            if (!connection.open(client)) {
+                silentlyClose(client); // accepted while the server was shutting down
+                return;
+            }
+            activeClients.incrementAndGet();
+            try {
+                logger.info("Connection accepted from " + client.getRemoteAddress());
+                serve(client, connection);
+            } catch (IOException ioe) {
+                logger.log(Level.INFO, "Connection terminated with client by IOException", ioe.getCause());
+            } finally {
+                activeClients.decrementAndGet();
+                connection.release();
+                silentlyClose(client);
+            }
+        }
+    }
+
+    /**
+     * Reads the admin commands on the standard input:
+     * <ul>
+     * <li>INFO: active clients, total requests and p50/p99 latencies</li>
+     * <li>SHUTDOWN [timeout-ms]: stops accepting, closes the idle connections, lets
+     * the in-flight requests finish before the timeout then closes everything</li>
+     * <li>SHUTDOWNNOW: closes everything immediately</li>
+     * </ul>
+     */
+    private void consoleRun() {
+        try (var scanner = new Scanner(System.in)) {
+            while (scanner.hasNextLine()) {
+                var command = scanner.nextLine().trim().split("\\s+");
+                if (command[0].isEmpty()) {
+                    continue;
+                }
+                switch (command[0].toUpperCase()) {
+                    case "INFO" -> info();
+                    case "SHUTDOWN" -> {
+                        var timeout = DEFAULT_DRAIN_TIMEOUT;
+                        if (command.length > 1) {
+                            try {
+                                timeout = Long.parseLong(command[1]);
+                            } catch (NumberFormatException e) {
+                                timeout = -1;
+                            }
+                        }
+                        if (timeout < 0) {
+                            System.out.println("Invalid timeout for SHUTDOWN, expected a number of ms >= 0");
+                            continue;
                         }
-                    } catch (IOException ioe) {
-                        logger.log(Level.SEVERE, "Connection terminated with client by IOException", ioe.getCause());
-                        silentlyClose(serverSocketChannel);
+                        shutdown(timeout);
                         return;
                     }
+                    case "SHUTDOWNNOW" -> {
+                        shutdownNow();
+                        return;
+                    }
+                    default -> System.out.println("Unknown command. Available: INFO, SHUTDOWN [timeout-ms], SHUTDOWNNOW");
                 }
-            });
+            }
+        } catch (InterruptedException e) {
+            logger.info("Console thread interrupted");
+        }
+    }
+
+    private void info() {
+        var percentiles = latencies.percentiles(50, 99);
+        System.out.println("Active clients: " + activeClients.get());
+        System.out.println("Total requests: " + totalRequests.sum());
+        System.out.println("Latency p50: " + TimeUnit.NANOSECONDS.toMicros(percentiles[0]) + " us, p99: "
+                + TimeUnit.NANOSECONDS.toMicros(percentiles[1]) + " us");
+    }
+
+    /**
+     * Stops accepting new clients, closes the connections waiting for their next
+     * request and waits at most timeout ms for the workers to finish the request
+     * they are serving, then interrupts them.
+     *
+     * @param timeout in milliseconds
+     * @throws InterruptedException
+     */
+    private void shutdown(long timeout) throws InterruptedException {
+        logger.info("Draining, no more clients accepted");
+        draining = true;
+        silentlyClose(serverSocketChannel);
+        connections.forEach(Connection::closeIfIdle);
+
+        var deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (var worker : workers) {
+            var left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (left <= 0) {
+                break;
+            }
+            worker.join(left);
         }
+        shutdownNow();
+    }
+
+    private void shutdownNow() {
+        logger.info("Closing all connections");
+        draining = true;
+        silentlyClose(serverSocketChannel);
+        // a thread interrupted while blocked on a SocketChannel closes it
+        workers.forEach(Thread::interrupt);
     }
 
     /**
      * Treat the connection sc applying the protocol. All IOException are thrown
+     * but the one of a connection closed by a shutdown while it waits for its
+     * next request.
      *
      * @param sc
+     * @param connection the state of sc, busy while a request is served
      * @throws IOException
      */
-    private void serve(SocketChannel sc) throws IOException {
+    private void serve(SocketChannel sc, Connection connection) throws IOException {
         var receiveBuffer = ByteBuffer.allocate(Integer.BYTES);
         var sendBuffer = ByteBuffer.allocate(Long.BYTES);
 
-        while (!Thread.interrupted()) {
+        while (!draining && !Thread.currentThread().isInterrupted()) {
             receiveBuffer.clear();
             sendBuffer.clear();
             // Receive
-            if (!readFully(sc, receiveBuffer)) {
+            if (!connection.idle()) {
+                return;
+            }
+            try {
+                if (sc.read(receiveBuffer) == -1) {
+                    logger.info("Connexion interrupted, stopping...");
+                    return;
+                }
+            } catch (AsynchronousCloseException e) {
+                logger.info("Idle connection closed by the shutdown");
+                return;
+            }
+            if (!connection.busy() || !readFully(sc, receiveBuffer)) {
                 logger.info("Connexion interrupted, stopping...");
                 return;
             }
@@ -80,18 +284,19 @@ public class FixedPrestartedLongSumServer {
                 throw new IOException();
             }
 
-            receiveBuffer = ByteBuffer.allocate(Long.BYTES * size);
-            if (!readFully(sc, receiveBuffer)) {
+            var start = System.nanoTime();
+            var longsBuffer = ByteBuffer.allocate(Long.BYTES * size);
+            if (!readFully(sc, longsBuffer)) {
                 logger.info("Invalid format for longs, dropping...");
                 throw new IOException();
             }
 
-            receiveBuffer.flip();
-            logger.info("Received " + receiveBuffer.remaining() / Long.BYTES + " longs from " + sc.getRemoteAddress());
+            longsBuffer.flip();
+            logger.info("Received " + longsBuffer.remaining() / Long.BYTES + " longs from " + sc.getRemoteAddress());
 
             var sum = 0L;
             for (var i = 0; i < size; i++) {
-                var value = receiveBuffer.getLong();
+                var value = longsBuffer.getLong();
                 logger.info("Long: " + value);
                 sum += value;
             }
@@ -102,6 +307,8 @@ public class FixedPrestartedLongSumServer {
 
             logger.info("Sending " + sum + " (sum) to " + sc.getRemoteAddress());
             sc.write(sendBuffer);
+            totalRequests.increment();
+            latencies.record(System.nanoTime() - start);
         }
     }
 
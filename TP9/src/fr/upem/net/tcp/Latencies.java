@@ -0,0 +1,52 @@
+package fr.upem.net.tcp;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the last recorded latencies (in nanoseconds) in a ring buffer so that
+ * percentiles can be computed on demand. All methods are thread-safe.
+ */
+class Latencies {
+    private final long[] samples;
+    private int next;
+    private int size;
+
+    Latencies(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException();
+        }
+        samples = new long[capacity];
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) {
+            size++;
+        }
+    }
+
+    /**
+     * Compute the given percentiles over the samples currently kept.
+     *
+     * @param percentiles values between 0 and 100
+     * @return the latency in nanoseconds for each requested percentile, 0 if nothing was recorded
+     */
+    long[] percentiles(double... percentiles) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, size);
+        }
+        Arrays.sort(sorted);
+
+        var result = new long[percentiles.length];
+        if (sorted.length == 0) {
+            return result;
+        }
+        for (var i = 0; i < percentiles.length; i++) {
+            var rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length) - 1;
+            result[i] = sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+        }
+        return result;
+    }
+}
@@ -72,18 +72,18 @@ public class OnDemandConcurrentLongSumServer {
                 throw new IOException();
             }
 
-            receiveBuffer = ByteBuffer.allocate(Long.BYTES * size);
-            if (!readFully(sc, receiveBuffer)) {
+            var longsBuffer = ByteBuffer.allocate(Long.BYTES * size);
+            if (!readFully(sc, longsBuffer)) {
                 logger.info("Invalid format for longs, dropping...");
                 throw new IOException();
             }
 
-            receiveBuffer.flip();
-            logger.info("Received " + receiveBuffer.remaining() / Long.BYTES + " longs from " + sc.getRemoteAddress());
+            longsBuffer.flip();
+            logger.info("Received " + longsBuffer.remaining() / Long.BYTES + " longs from " + sc.getRemoteAddress());
 
             var sum = 0L;
             for (var i = 0; i < size; i++) {
-                var value = receiveBuffer.getLong();
+                var value = longsBuffer.getLong();
                 logger.info("Long: " + value);
                 sum += value;
             }
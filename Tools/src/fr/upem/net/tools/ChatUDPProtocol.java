@@ -0,0 +1,69 @@
+package fr.upem.net.tools;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chat protocol of ServerChat (Exam UDP 2023): a message (int size + sender,
+ * int size + recipient, int size + message, all in UTF-8) is forwarded to the
+ * recipient as int size + sender, int size + message. Each flow is a user that
+ * sends its messages to itself, the message starts with the request id in 16
+ * hexadecimal digits and is padded to the payload length.
+ */
+class ChatUDPProtocol implements UdpProtocol {
+    private static final int ID_DIGITS = 16;
+    private static final int MAX_MESSAGE = 1_024;
+    private static final AtomicInteger USERS = new AtomicInteger();
+    private final ByteBuffer user;
+    private final ByteBuffer padding;
+
+    ChatUDPProtocol(int payload) {
+        if (payload < ID_DIGITS || payload > MAX_MESSAGE) {
+            throw new IllegalArgumentException("Chat messages are between " + ID_DIGITS + " and " + MAX_MESSAGE
+                    + " bytes");
+        }
+        user = StandardCharsets.UTF_8.encode("user" + USERS.getAndIncrement());
+        padding = ByteBuffer.allocate(payload - ID_DIGITS);
+        while (padding.hasRemaining()) {
+            padding.put((byte) ('a' + padding.position() % 26));
+        }
+        padding.flip();
+    }
+
+    @Override
+    public void putRequest(ByteBuffer buffer, long id) {
+        for (var i = 0; i < 2; i++) { // sender and recipient
+            buffer.putInt(user.remaining()).put(user.duplicate());
+        }
+        buffer.putInt(ID_DIGITS + padding.remaining());
+        for (var shift = (ID_DIGITS - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.put((byte) Character.forDigit((int) (id >>> shift) & 0xF, 16));
+        }
+        buffer.put(padding.duplicate());
+    }
+
+    @Override
+    public long responseId(ByteBuffer buffer) {
+        if (buffer.remaining() < Integer.BYTES) {
+            return -1;
+        }
+        var senderSize = buffer.getInt();
+        if (senderSize < 0 || buffer.remaining() < senderSize + Integer.BYTES) {
+            return -1;
+        }
+        buffer.position(buffer.position() + senderSize);
+        if (buffer.getInt() < ID_DIGITS || buffer.remaining() < ID_DIGITS) {
+            return -1;
+        }
+        var id = 0L;
+        for (var i = 0; i < ID_DIGITS; i++) {
+            var digit = Character.digit(buffer.get(), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            id = id << 4 | digit;
+        }
+        return id;
+    }
+}
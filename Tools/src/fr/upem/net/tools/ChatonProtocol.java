@@ -0,0 +1,75 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Chaton protocol (TP11, TP12): a message is a login and a text, each one sent
+ * as an int size followed by UTF-8 bytes, and the server broadcasts every
+ * message to all the connected clients. A request is answered when the message
+ * comes back to its sender; the messages of the other connections are skipped.
+ * The payload is the length of the text.
+ */
+class ChatonProtocol implements TcpProtocol {
+    private static final int MAX_STRING = 1_024; // limit of the StringReader of the server
+    private final ByteBuffer request;
+    private final ByteBuffer login;
+    private final ByteBuffer scratch = ByteBuffer.allocate(MAX_STRING);
+
+    ChatonProtocol(String login, int payload) {
+        if (payload < 0 || payload > MAX_STRING) {
+            throw new IllegalArgumentException("Chaton messages are limited to " + MAX_STRING + " bytes");
+        }
+        this.login = StandardCharsets.UTF_8.encode(login);
+        var text = ByteBuffer.allocate(payload);
+        while (text.hasRemaining()) {
+            text.put((byte) ('a' + text.position() % 26));
+        }
+        text.flip();
+        request = ByteBuffer.allocate(2 * Integer.BYTES + this.login.remaining() + payload);
+        request.putInt(this.login.remaining()).put(this.login.duplicate());
+        request.putInt(payload).put(text);
+        request.flip();
+    }
+
+    @Override
+    public ByteBuffer request() {
+        return request;
+    }
+
+    /**
+     * Reads an int size then the string in scratch (in read-mode).
+     *
+     * @return false if the connection was closed
+     */
+    private boolean readString(SocketChannel sc) throws IOException {
+        scratch.clear().limit(Integer.BYTES);
+        if (!TcpProtocol.readFully(sc, scratch)) {
+            return false;
+        }
+        var size = scratch.flip().getInt();
+        if (size < 0 || size > MAX_STRING) {
+            throw new IOException("Invalid string size: " + size);
+        }
+        scratch.clear().limit(size);
+        if (!TcpProtocol.readFully(sc, scratch)) {
+            return false;
+        }
+        scratch.flip();
+        return true;
+    }
+
+    @Override
+    public Response readResponse(SocketChannel sc) throws IOException {
+        if (!readString(sc)) {
+            return Response.CLOSED;
+        }
+        var mine = scratch.equals(login);
+        if (!readString(sc)) {
+            return Response.CLOSED;
+        }
+        return mine ? Response.MATCHED : Response.IGNORED;
+    }
+}
@@ -0,0 +1,57 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Concatenation protocol (TP7): an int count followed by count strings (int
+ * size + UTF-8 bytes), the server answers the strings joined with commas as one
+ * string. The payload is the number of strings per request.
+ */
+class ConcatenationProtocol implements TcpProtocol {
+    private static final int SCRATCH_SIZE = 8_192;
+    private final ByteBuffer request;
+    private final ByteBuffer scratch = ByteBuffer.allocate(SCRATCH_SIZE);
+    private final int expectedSize;
+
+    ConcatenationProtocol(int payload) {
+        if (payload < 0) {
+            throw new IllegalArgumentException();
+        }
+        var strings = new ByteBuffer[payload];
+        var size = Integer.BYTES;
+        var joined = Math.max(0, payload - 1); // the commas
+        for (var i = 0; i < payload; i++) {
+            strings[i] = StandardCharsets.UTF_8.encode("string-" + i);
+            size += Integer.BYTES + strings[i].remaining();
+            joined += strings[i].remaining();
+        }
+        request = ByteBuffer.allocate(size);
+        request.putInt(payload);
+        for (var string : strings) {
+            request.putInt(string.remaining()).put(string);
+        }
+        request.flip();
+        expectedSize = joined;
+    }
+
+    @Override
+    public ByteBuffer request() {
+        return request;
+    }
+
+    @Override
+    public Response readResponse(SocketChannel sc) throws IOException {
+        scratch.clear().limit(Integer.BYTES);
+        if (!TcpProtocol.readFully(sc, scratch)) {
+            return Response.CLOSED;
+        }
+        var size = scratch.flip().getInt();
+        if (size != expectedSize) {
+            throw new IOException("Wrong size received: " + size);
+        }
+        return TcpProtocol.skip(sc, scratch, size) ? Response.MATCHED : Response.CLOSED;
+    }
+}
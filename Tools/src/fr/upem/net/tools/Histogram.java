@@ -0,0 +1,84 @@
+package fr.upem.net.tools;
+
+/**
+ * Latency histogram in the spirit of HdrHistogram: each power of two is split
+ * into 64 linear sub-buckets, so any recorded value is known with a relative
+ * error below 1.6% while the whole range of positive longs fits in a few
+ * thousand counters.
+ *
+ * Not thread-safe: each thread records in its own histogram and the histograms
+ * are merged with add at the end of the run.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int SIZE = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[SIZE];
+    private long count;
+    private long max;
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        var shift = Long.SIZE - Long.numberOfLeadingZeros(value) - 1 - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the highest value that falls in the bucket index
+     */
+    static long valueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        var shift = (index >> SUB_BUCKET_BITS) - 1;
+        var subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((subBucket + 1L) << shift) - 1;
+    }
+
+    void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException();
+        }
+        counts[indexOf(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    void add(Histogram other) {
+        for (var i = 0; i < SIZE; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value below which percentile % of the recorded values fall, 0 if empty
+     */
+    long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        var seen = 0L;
+        for (var i = 0; i < SIZE; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,37 @@
+package fr.upem.net.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * IdUpperCase protocol (TP4, TP5): a long id followed by a UTF-8 line, the
+ * server answers the id followed by the line in upper case. The payload is the
+ * length of the line.
+ */
+class IdUpperCaseProtocol implements UdpProtocol {
+    private static final int MAX_LINE = 1_024 - Long.BYTES;
+    private final ByteBuffer line;
+
+    IdUpperCaseProtocol(int payload) {
+        if (payload < 0 || payload > MAX_LINE) {
+            throw new IllegalArgumentException("IdUpperCase lines are limited to " + MAX_LINE + " bytes");
+        }
+        line = ByteBuffer.allocate(payload);
+        while (line.hasRemaining()) {
+            line.put((byte) ('a' + line.position() % 26));
+        }
+        line.flip();
+    }
+
+    @Override
+    public void putRequest(ByteBuffer buffer, long id) {
+        buffer.putLong(id).put(line.duplicate());
+    }
+
+    @Override
+    public long responseId(ByteBuffer buffer) {
+        if (buffer.remaining() < Long.BYTES) {
+            return -1;
+        }
+        return buffer.getLong();
+    }
+}
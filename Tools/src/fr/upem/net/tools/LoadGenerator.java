@@ -0,0 +1,328 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Load generator for the TCP and UDP protocols of the TPs. It opens N
+ * connections (TCP) or flows (UDP, one DatagramChannel each) and sends requests
+ * at a fixed total rate for a given duration.
+ *
+ * The scheduling is open-loop: the i-th request of a connection is due at
+ * start + i * period whether the previous ones were answered or not, and its
+ * latency is measured from that due time. A server that stalls is therefore
+ * charged for all the requests that should have been sent meanwhile instead of
+ * slowing the generator down (coordinated omission). A request that is not
+ * sent because too many requests of its connection are waiting is charged from
+ * its due time to the end of the run.
+ */
+public class LoadGenerator {
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+    private static final int BUFFER_SIZE = 2_048;
+    private static final int MAX_IN_FLIGHT = 1 << 16; // per connection
+    private static final long GRACE = TimeUnit.SECONDS.toNanos(2); // to wait for the last responses
+    private static final long START_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static class Flow {
+        private final Histogram histogram = new Histogram(); // written by the receiving thread only
+        private final Histogram droppedHistogram = new Histogram(); // written by the sending thread only
+        private long sent;
+        private long received;
+        private long dropped; // not sent because MAX_IN_FLIGHT requests were waiting
+        private long sendErrors; // written by the sending thread only
+        private long receiveErrors; // written by the receiving thread only, read after its join
+    }
+
+    private final String protocol;
+    private final boolean udp;
+    private final InetSocketAddress server;
+    private final int connections;
+    private final double period; // in ns, per connection
+    private final int payload;
+    private final long duration; // in ns
+
+    public LoadGenerator(String protocol, InetSocketAddress server, int connections, double rate, int payload,
+                         long durationSeconds) {
+        if (connections < 1 || rate <= 0 || durationSeconds < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.protocol = protocol;
+        this.udp = switch (protocol) {
+            case "longsum", "concat", "chaton" -> false;
+            case "idupper", "longsumudp", "chatudp" -> true;
+            default -> throw new IllegalArgumentException("Unknown protocol " + protocol);
+        };
+        this.server = server;
+        this.connections = connections;
+        this.period = 1e9 * connections / rate;
+        this.payload = payload;
+        this.duration = TimeUnit.SECONDS.toNanos(durationSeconds);
+    }
+
+    /**
+     * Parks the current thread until the given System.nanoTime().
+     *
+     * @return false if the thread was interrupted
+     */
+    private static boolean waitUntil(long deadline) {
+        for (long left; (left = deadline - System.nanoTime()) > 0; ) {
+            LockSupport.parkNanos(left);
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    /**
+     * Closes the channel, which stops the thread receiving from it, and waits for
+     * that thread.
+     */
+    private static void closeAndJoin(Channel channel, Thread receiver) {
+        closeQuietly(channel);
+        try {
+            receiver.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void tcpFlowRun(int index, Flow flow, long start) {
+        var tcpProtocol = TcpProtocol.of(protocol, index, payload);
+        var dueTimes = new LongFifo(MAX_IN_FLIGHT);
+        SocketChannel sc;
+        try {
+            sc = SocketChannel.open(server);
+        } catch (IOException e) {
+            logger.warning("Connection " + index + ": " + e.getMessage());
+            flow.sendErrors++;
+            return;
+        }
+        var reader = Thread.ofPlatform().start(() -> {
+            try {
+                for (;;) {
+                    switch (tcpProtocol.readResponse(sc)) {
+                        case MATCHED -> {
+                            if (dueTimes.isEmpty()) {
+                                flow.receiveErrors++;
+                                continue;
+                            }
+                            flow.histogram.record(System.nanoTime() - dueTimes.poll());
+                            flow.received++;
+                        }
+                        case IGNORED -> { }
+                        case CLOSED -> {
+                            return;
+                        }
+                    }
+                }
+            } catch (AsynchronousCloseException e) {
+                // closed at the end of the run
+            } catch (IOException e) {
+                logger.warning("Connection " + index + ": " + e.getMessage());
+                flow.receiveErrors++;
+            }
+        });
+
+        var end = start + duration;
+        try {
+            for (long i = 0, due = start; due < end && reader.isAlive(); i++, due = start + (long) (i * period)) {
+                if (!waitUntil(due)) {
+                    break;
+                }
+                if (!dueTimes.offer(due)) {
+                    flow.droppedHistogram.record(end + GRACE - due);
+                    flow.dropped++;
+                    continue;
+                }
+                var request = tcpProtocol.request().duplicate();
+                while (request.hasRemaining()) {
+                    sc.write(request);
+                }
+                flow.sent++;
+            }
+
+            var graceEnd = System.nanoTime() + GRACE;
+            while (!dueTimes.isEmpty() && reader.isAlive() && System.nanoTime() < graceEnd) {
+                Thread.sleep(1);
+            }
+        } catch (IOException e) {
+            logger.warning("Connection " + index + ": " + e.getMessage());
+            flow.sendErrors++;
+        } catch (InterruptedException e) {
+            logger.info("Connection " + index + " interrupted");
+        } finally {
+            closeAndJoin(sc, reader);
+        }
+    }
+
+    private void udpFlowRun(int index, Flow flow, long start) {
+        var udpProtocol = UdpProtocol.of(protocol, payload);
+        // slot id % MAX_IN_FLIGHT holds the due time of request id until it is answered
+        var ids = new AtomicLongArray(MAX_IN_FLIGHT);
+        var dueTimes = new long[MAX_IN_FLIGHT];
+        for (var i = 0; i < MAX_IN_FLIGHT; i++) {
+            ids.set(i, -1);
+        }
+
+        DatagramChannel dc;
+        try {
+            dc = DatagramChannel.open();
+        } catch (IOException e) {
+            logger.warning("Flow " + index + ": " + e.getMessage());
+            flow.sendErrors++;
+            return;
+        }
+        try {
+            dc.connect(server);
+        } catch (IOException e) {
+            logger.warning("Flow " + index + ": " + e.getMessage());
+            flow.sendErrors++;
+            closeQuietly(dc);
+            return;
+        }
+        var receiver = Thread.ofPlatform().start(() -> {
+            var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try {
+                for (;;) {
+                    buffer.clear();
+                    dc.receive(buffer);
+                    var now = System.nanoTime();
+                    var id = udpProtocol.responseId(buffer.flip());
+                    if (id < 0) {
+                        continue;
+                    }
+                    var slot = (int) (id % MAX_IN_FLIGHT);
+                    if (!ids.compareAndSet(slot, id, -1)) {
+                        continue; // duplicate or answer to a request given up
+                    }
+                    flow.histogram.record(now - dueTimes[slot]);
+                    flow.received++;
+                }
+            } catch (AsynchronousCloseException e) {
+                // closed at the end of the run
+            } catch (IOException e) {
+                logger.warning("Flow " + index + ": " + e.getMessage());
+                flow.receiveErrors++;
+            }
+        });
+
+        var buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        var end = start + duration;
+        try {
+            for (long id = 0, due = start; due < end; id++, due = start + (long) (id * period)) {
+                if (!waitUntil(due)) {
+                    break;
+                }
+                var slot = (int) (id % MAX_IN_FLIGHT);
+                dueTimes[slot] = due;
+                ids.set(slot, id); // publishes dueTimes[slot], an unanswered request in this slot is lost
+                buffer.clear();
+                udpProtocol.putRequest(buffer, id);
+                dc.write(buffer.flip());
+                flow.sent++;
+            }
+
+            Thread.sleep(TimeUnit.NANOSECONDS.toMillis(GRACE));
+        } catch (IOException e) {
+            logger.warning("Flow " + index + ": " + e.getMessage());
+            flow.sendErrors++;
+        } catch (InterruptedException e) {
+            logger.info("Flow " + index + " interrupted");
+        } finally {
+            closeAndJoin(dc, receiver);
+        }
+    }
+
+    public void launch() throws InterruptedException {
+        var flows = new ArrayList<Flow>(connections);
+        var threads = new ArrayList<Thread>(connections);
+        var start = System.nanoTime() + START_DELAY;
+        for (var i = 0; i < connections; i++) {
+            var index = i;
+            var flow = new Flow();
+            flows.add(flow);
+            // spreads the requests of the connections over the period
+            var flowStart = start + (long) (period * i / connections);
+            threads.add(Thread.ofPlatform().start(() -> {
+                if (udp) {
+                    udpFlowRun(index, flow, flowStart);
+                } else {
+                    tcpFlowRun(index, flow, flowStart);
+                }
+            }));
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        var histogram = new Histogram();
+        long sent = 0, received = 0, dropped = 0, errors = 0;
+        for (var flow : flows) {
+            histogram.add(flow.histogram);
+            histogram.add(flow.droppedHistogram);
+            sent += flow.sent;
+            received += flow.received;
+            dropped += flow.dropped;
+            errors += flow.sendErrors + flow.receiveErrors;
+        }
+
+        var seconds = duration / 1e9;
+        System.out.println(protocol + " on " + server + ": " + connections + (udp ? " flows, " : " connections, ")
+                + Math.round(1e9 * connections / period) + " req/s targeted, payload " + payload);
+        System.out.println("Sent: " + sent + ", answered: " + received + ", lost: " + (sent - received)
+                + ", not sent (too many in flight): " + dropped + ", errors: " + errors);
+        System.out.printf("Throughput: %.0f req/s%n", received / seconds);
+        System.out.println("Latency from due time, not sent until the end of the run (us): p50 "
+                + micros(histogram.percentile(50))
+                + ", p90 " + micros(histogram.percentile(90))
+                + ", p99 " + micros(histogram.percentile(99))
+                + ", p99.9 " + micros(histogram.percentile(99.9))
+                + ", p99.99 " + micros(histogram.percentile(99.99))
+                + ", max " + micros(histogram.max()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static void usage() {
+        System.out.println("Usage : LoadGenerator protocol host port connections rate payload duration");
+        System.out.println("  protocol : longsum (payload = longs per request)");
+        System.out.println("             concat (payload = strings per request)");
+        System.out.println("             chaton (payload = message length)");
+        System.out.println("             idupper (payload = line length)");
+        System.out.println("             longsumudp (payload = operands per session)");
+        System.out.println("             chatudp (payload = message length)");
+        System.out.println("  rate     : total requests per second over all the connections");
+        System.out.println("  duration : in seconds");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 7) {
+            usage();
+            return;
+        }
+        var server = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+        new LoadGenerator(args[0], server, Integer.parseInt(args[3]), Double.parseDouble(args[4]),
+                Integer.parseInt(args[5]), Long.parseLong(args[6])).launch();
+    }
+}
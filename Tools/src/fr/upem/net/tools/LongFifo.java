@@ -0,0 +1,68 @@
+package fr.upem.net.tools;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded FIFO of longs for exactly one producer thread and one consumer
+ * thread, without locks nor boxing.
+ */
+class LongFifo {
+    private final long[] values;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next index to poll, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next index to offer, written by the producer
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    LongFifo(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException();
+        }
+        var size = Integer.highestOneBit(capacity - 1) << 1;
+        values = new long[Math.max(1, size)];
+        mask = values.length - 1;
+    }
+
+    /**
+     * Called by the producer only.
+     *
+     * @return false if the FIFO is full
+     */
+    boolean offer(long value) {
+        var t = tail.get();
+        if (t - head.get() == values.length) {
+            return false;
+        }
+        values[(int) (t & mask)] = value;
+        tail.lazySet(t + 1); // publishes the value
+        return true;
+    }
+
+    /**
+     * Called by the consumer only.
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Called by the consumer only.
+     *
+     * @throws NoSuchElementException if the FIFO is empty
+     */
+    long poll() {
+        var h = head.get();
+        if (h == tail.get()) {
+            throw new NoSuchElementException();
+        }
+        var value = values[(int) (h & mask)];
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
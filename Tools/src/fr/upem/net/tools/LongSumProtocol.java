@@ -0,0 +1,50 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * LongSum protocol (TP7, TP9, TP11): an int count followed by count longs, the
+ * server answers their sum. The payload is the number of longs per request.
+ */
+class LongSumProtocol implements TcpProtocol {
+    private final ByteBuffer request;
+    private final ByteBuffer response = ByteBuffer.allocate(Long.BYTES);
+    private final long expected;
+
+    LongSumProtocol(int payload) {
+        if (payload < 0) {
+            throw new IllegalArgumentException();
+        }
+        var random = new Random();
+        var sum = 0L;
+        request = ByteBuffer.allocate(Integer.BYTES + payload * Long.BYTES);
+        request.putInt(payload);
+        for (var i = 0; i < payload; i++) {
+            var value = random.nextLong();
+            request.putLong(value);
+            sum += value;
+        }
+        request.flip();
+        expected = sum;
+    }
+
+    @Override
+    public ByteBuffer request() {
+        return request;
+    }
+
+    @Override
+    public Response readResponse(SocketChannel sc) throws IOException {
+        response.clear();
+        if (!TcpProtocol.readFully(sc, response)) {
+            return Response.CLOSED;
+        }
+        if (response.flip().getLong() != expected) {
+            throw new IOException("Wrong sum received");
+        }
+        return Response.MATCHED;
+    }
+}
@@ -0,0 +1,42 @@
+package fr.upem.net.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * LongSumUDP protocol (TP5): the operands of a session are sent one per OP
+ * datagram (byte 1, sessionId, idPosOper, totalOper, opValue), the server
+ * answers each of them with an ACK (byte 2, sessionId, idPosOper) and sends a
+ * RES once the session is complete. The payload is the number of operands per
+ * session and each OP datagram counts as a request answered by its ACK.
+ */
+class LongSumUDPProtocol implements UdpProtocol {
+    private static final byte OP = 1;
+    private static final byte ACK = 2;
+    private final int payload;
+
+    LongSumUDPProtocol(int payload) {
+        if (payload < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.payload = payload;
+    }
+
+    @Override
+    public void putRequest(ByteBuffer buffer, long id) {
+        buffer.put(OP)
+                .putLong(id / payload) // sessionId
+                .putLong(id % payload) // idPosOper
+                .putLong(payload)      // totalOper
+                .putLong(id);          // opValue
+    }
+
+    @Override
+    public long responseId(ByteBuffer buffer) {
+        if (buffer.remaining() < Byte.BYTES + 2 * Long.BYTES || buffer.get() != ACK) {
+            return -1; // RES datagrams are not requests answers
+        }
+        var sessionId = buffer.getLong();
+        var idPosOper = buffer.getLong();
+        return sessionId * payload + idPosOper;
+    }
+}
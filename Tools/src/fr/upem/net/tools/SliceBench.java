@@ -0,0 +1,150 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the slice server of the Exam UDP 2023 (ServerSlice): each
+ * requester sends a request of longs and waits for all its slices, or for
+ * TIMEOUT, before sending the next one. All the requesters are served by one
+ * selector thread, so the benchmark measures the server rather than the
+ * scheduling of the requesters.
+ */
+public class SliceBench {
+    private static final long TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private static class Requester {
+        private final DatagramChannel dc;
+        private long request; // sequence number of the current request
+        private int missing; // slices of the current request not received yet
+        private long sentAt;
+
+        private Requester(DatagramChannel dc) {
+            this.dc = dc;
+        }
+    }
+
+    private final InetSocketAddress server;
+    private final int requesters;
+    private final int longs; // per request
+    private final long duration; // in ns
+    private final ByteBuffer buffer;
+
+    private long requests;
+    private long completed;
+    private long timedOut;
+    private long slices;
+
+    public SliceBench(InetSocketAddress server, int requesters, int longs, long durationSeconds) {
+        if (requesters < 1 || longs < 1 || longs > 128 || durationSeconds < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.server = server;
+        this.requesters = requesters;
+        this.longs = longs;
+        this.duration = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.buffer = ByteBuffer.allocateDirect(longs * Long.BYTES);
+    }
+
+    /**
+     * Sends the next request of requester, its longs are request * longs + i.
+     */
+    private void send(Requester requester, long now) throws IOException {
+        requester.request++;
+        requester.missing = longs;
+        requester.sentAt = now;
+        buffer.clear();
+        for (var i = 0; i < longs; i++) {
+            buffer.putLong(requester.request * longs + i);
+        }
+        requester.dc.write(buffer.flip());
+        requests++;
+    }
+
+    private void receive(Requester requester, long now) throws IOException {
+        for (;;) {
+            buffer.clear();
+            if (requester.dc.receive(buffer) == null) {
+                return;
+            }
+            buffer.flip();
+            if (buffer.remaining() != Long.BYTES || buffer.getLong() / longs != requester.request) {
+                continue; // slice of a request given up
+            }
+            slices++;
+            if (--requester.missing == 0) {
+                completed++;
+                send(requester, now);
+            }
+        }
+    }
+
+    public void launch() throws IOException {
+        var all = new ArrayList<Requester>(requesters);
+        try (var selector = Selector.open()) {
+            var start = System.nanoTime();
+            for (var i = 0; i < requesters; i++) {
+                var dc = DatagramChannel.open();
+                dc.connect(server);
+                dc.configureBlocking(false);
+                var requester = new Requester(dc);
+                dc.register(selector, SelectionKey.OP_READ, requester);
+                all.add(requester);
+                send(requester, start);
+            }
+
+            var end = start + duration;
+            for (long now; (now = System.nanoTime()) < end; ) {
+                selector.select(key -> {
+                    try {
+                        receive((Requester) key.attachment(), System.nanoTime());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(end - now, TIMEOUT))));
+                now = System.nanoTime();
+                for (var requester : all) {
+                    if (now - requester.sentAt >= TIMEOUT) {
+                        timedOut++;
+                        send(requester, now);
+                    }
+                }
+            }
+        } catch (UncheckedIOException tunneled) {
+            throw tunneled.getCause();
+        } finally {
+            for (var requester : all) {
+                requester.dc.close();
+            }
+        }
+
+        var seconds = duration / 1e9;
+        System.out.println(requesters + " requesters, " + longs + " longs per request, on " + server);
+        System.out.println("Requests: " + requests + " sent, " + completed + " completed, " + timedOut
+                + " timed out");
+        System.out.printf("Throughput: %.0f slices/s, %.0f requests/s%n", slices / seconds, completed / seconds);
+    }
+
+    private static void usage() {
+        System.out.println("Usage : SliceBench host port requesters longs duration");
+        System.out.println("  longs    : per request, at most 128");
+        System.out.println("  duration : in seconds");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 5) {
+            usage();
+            return;
+        }
+        var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        new SliceBench(server, Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[4]))
+                .launch();
+    }
+}
@@ -0,0 +1,68 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Client side of a request/response TCP protocol, as seen by the load
+ * generator. There is one instance per connection: the request is built once
+ * and sent again and again, the responses are read by a dedicated thread.
+ */
+interface TcpProtocol {
+    enum Response { MATCHED, IGNORED, CLOSED }
+
+    /**
+     * @return the request to send, in read-mode. The caller sends a duplicate.
+     */
+    ByteBuffer request();
+
+    /**
+     * Reads the next response on sc (in blocking mode).
+     *
+     * @return MATCHED if it answers the oldest request in flight, IGNORED if
+     *         it must be skipped (e.g. a message broadcast by another client)
+     *         and CLOSED if the server closed the connection
+     */
+    Response readResponse(SocketChannel sc) throws IOException;
+
+    static TcpProtocol of(String name, int connection, int payload) {
+        return switch (name) {
+            case "longsum" -> new LongSumProtocol(payload);
+            case "concat" -> new ConcatenationProtocol(payload);
+            case "chaton" -> new ChatonProtocol("load-" + connection, payload);
+            default -> throw new IllegalArgumentException("Unknown TCP protocol " + name);
+        };
+    }
+
+    /**
+     * Fill the workspace of the Bytebuffer with bytes read from sc.
+     *
+     * @return false if read returned -1 at some point and true otherwise
+     */
+    static boolean readFully(SocketChannel sc, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (sc.read(buffer) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads and drops size bytes from sc using buffer as scratch space.
+     *
+     * @return false if the connection was closed before
+     */
+    static boolean skip(SocketChannel sc, ByteBuffer buffer, int size) throws IOException {
+        while (size > 0) {
+            buffer.clear();
+            buffer.limit(Math.min(size, buffer.capacity()));
+            if (!readFully(sc, buffer)) {
+                return false;
+            }
+            size -= buffer.position();
+        }
+        return true;
+    }
+}
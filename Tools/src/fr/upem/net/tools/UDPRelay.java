@@ -0,0 +1,324 @@
+package fr.upem.net.tools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * UDP relay that degrades the traffic between clients and a server, to test
+ * the retry logic of the UDP clients offline. The clients send to the relay,
+ * which forwards each datagram to the server from a channel dedicated to the
+ * client, so that the answers of the server can be sent back to it.
+ *
+ * Every datagram, in both directions, may be lost, duplicated, delayed by a
+ * fixed delay plus a random jitter, or held back to be delivered after the
+ * next ones. The datagrams of each direction then go through a link limited
+ * to a given bandwidth. All the random choices come from one seeded Random,
+ * so the same traffic is degraded the same way from one run to the next.
+ *
+ * The channels to the server are connected, so while the server is down they
+ * report the ICMP port unreachable errors: these are counted per direction and
+ * the relay keeps running.
+ */
+public class UDPRelay {
+    private static final Logger logger = Logger.getLogger(UDPRelay.class.getName());
+    private static final int BUFFER_SIZE = 65_536;
+    private static final int MAX_QUEUED = 100_000; // datagrams waiting for their delivery time
+    private static final long FLOW_TTL = TimeUnit.SECONDS.toNanos(60);
+    private static final long STATS_PERIOD = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Parameters of the degradation, the probabilities are between 0 and 1,
+     * the durations are in ns and the bandwidth in bytes/s (0 for unlimited).
+     */
+    public record Impairments(double loss, double duplication, double reordering, long delay, long jitter,
+                              long reorderDelay, long bandwidth, long seed) {
+        public Impairments {
+            if (loss < 0 || loss > 1 || duplication < 0 || duplication > 1 || reordering < 0 || reordering > 1
+                    || delay < 0 || jitter < 0 || reorderDelay < 0 || bandwidth < 0) {
+                throw new IllegalArgumentException();
+            }
+        }
+    }
+
+    private enum Direction { UP, DOWN }
+
+    private record Scheduled(long due, long sequence, ByteBuffer datagram, DatagramChannel channel,
+                             SocketAddress destination) { }
+
+    /**
+     * A client of the relay and the channel connected to the server on its behalf.
+     */
+    private static class Flow {
+        private final SocketAddress client;
+        private final DatagramChannel upstream;
+        private long lastActivity;
+
+        private Flow(SocketAddress client, DatagramChannel upstream) {
+            this.client = client;
+            this.upstream = upstream;
+        }
+    }
+
+    private static class Stats {
+        private long received;
+        private long lost;
+        private long duplicated;
+        private long reordered;
+        private long overflowed;
+        private long unreachable;
+        private long sent;
+
+        @Override
+        public String toString() {
+            return received + " received, " + lost + " lost, " + duplicated + " duplicated, " + reordered
+                    + " reordered, " + overflowed + " overflowed, " + unreachable + " unreachable, " + sent + " sent";
+        }
+    }
+
+    private final Impairments impairments;
+    private final Random random;
+    private final InetSocketAddress server;
+    private final DatagramChannel listener;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final HashMap<SocketAddress, Flow> flows = new HashMap<>();
+    private final PriorityQueue<Scheduled> queue = new PriorityQueue<>((s1, s2) -> s1.due != s2.due
+            ? Long.compare(s1.due, s2.due) : Long.compare(s1.sequence, s2.sequence));
+    private final long[] linkFree = new long[Direction.values().length]; // when each link is idle again
+    private final Stats[] stats = { new Stats(), new Stats() };
+    private long sequence;
+
+    public UDPRelay(int port, InetSocketAddress server, Impairments impairments) throws IOException {
+        this.impairments = impairments;
+        this.random = new Random(impairments.seed);
+        this.server = server;
+        selector = Selector.open();
+        listener = DatagramChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_READ);
+    }
+
+    public void serve() throws IOException {
+        logger.info("UDPRelay started, forwarding to " + server + " with " + impairments);
+        var lastStats = System.nanoTime();
+        while (!Thread.interrupted()) {
+            var head = queue.peek();
+            var timeout = head == null ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(head.due - System.nanoTime()));
+            try {
+                selector.select(this::treatKey, timeout);
+            } catch (UncheckedIOException tunneled) {
+                throw tunneled.getCause();
+            }
+            var now = System.nanoTime();
+            deliver(now);
+            if (now - lastStats >= STATS_PERIOD) {
+                expireFlows(now);
+                logger.info("client -> server: " + stats[Direction.UP.ordinal()]);
+                logger.info("server -> client: " + stats[Direction.DOWN.ordinal()]);
+                lastStats = now;
+            }
+        }
+    }
+
+    private void treatKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                if (key.channel() == listener) {
+                    doReadFromClients();
+                } else {
+                    doReadFromServer((Flow) key.attachment());
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private void doReadFromClients() throws IOException {
+        for (;;) {
+            buffer.clear();
+            var client = listener.receive(buffer);
+            if (client == null) {
+                return;
+            }
+            var flow = flows.get(client);
+            if (flow == null) {
+                var upstream = DatagramChannel.open();
+                upstream.connect(server);
+                upstream.configureBlocking(false);
+                flow = new Flow(client, upstream);
+                upstream.register(selector, SelectionKey.OP_READ, flow);
+                flows.put(client, flow);
+                logger.info("New client " + client);
+            }
+            flow.lastActivity = System.nanoTime();
+            impair(Direction.UP, buffer.flip(), flow.upstream, server);
+        }
+    }
+
+    private void doReadFromServer(Flow flow) throws IOException {
+        for (;;) {
+            buffer.clear();
+            try {
+                if (flow.upstream.receive(buffer) == null) {
+                    return;
+                }
+            } catch (PortUnreachableException e) {
+                // a datagram sent before to the server was refused, the next ones may not be
+                stats[Direction.UP.ordinal()].unreachable++;
+                logger.fine(() -> "Server unreachable for client " + flow.client);
+                continue;
+            }
+            flow.lastActivity = System.nanoTime();
+            impair(Direction.DOWN, buffer.flip(), listener, flow.client);
+        }
+    }
+
+    /**
+     * Decides the fate of a received datagram: lost, or scheduled once or twice.
+     */
+    private void impair(Direction direction, ByteBuffer datagram, DatagramChannel channel, SocketAddress destination) {
+        var directionStats = stats[direction.ordinal()];
+        directionStats.received++;
+        if (random.nextDouble() < impairments.loss) {
+            directionStats.lost++;
+            return;
+        }
+        var copies = 1;
+        if (random.nextDouble() < impairments.duplication) {
+            directionStats.duplicated++;
+            copies = 2;
+        }
+        var now = System.nanoTime();
+        for (var i = 0; i < copies; i++) {
+            if (queue.size() >= MAX_QUEUED) {
+                directionStats.overflowed++;
+                return;
+            }
+            var delay = impairments.delay;
+            if (impairments.jitter > 0) {
+                delay += (long) (random.nextDouble() * impairments.jitter);
+            }
+            if (random.nextDouble() < impairments.reordering) {
+                directionStats.reordered++;
+                delay += impairments.reorderDelay;
+            }
+            var due = link(direction, now + delay, datagram.remaining());
+            var copy = ByteBuffer.allocate(datagram.remaining()).put(datagram.duplicate()).flip();
+            queue.add(new Scheduled(due, sequence++, copy, channel, destination));
+        }
+    }
+
+    /**
+     * @return when a datagram of size bytes ready at time ready is fully
+     *         transmitted by the link of the direction
+     */
+    private long link(Direction direction, long ready, int size) {
+        if (impairments.bandwidth == 0) {
+            return ready;
+        }
+        var index = direction.ordinal();
+        var start = Math.max(ready, linkFree[index]);
+        linkFree[index] = start + size * TimeUnit.SECONDS.toNanos(1) / impairments.bandwidth;
+        return linkFree[index];
+    }
+
+    /**
+     * Sends the datagrams whose time has come. A datagram the socket cannot
+     * take now stays at the head of the queue until the next round.
+     */
+    private void deliver(long now) throws IOException {
+        for (Scheduled scheduled; (scheduled = queue.peek()) != null && scheduled.due - now <= 0; ) {
+            var direction = scheduled.channel == listener ? Direction.DOWN : Direction.UP;
+            if (!scheduled.channel.isOpen()) {
+                queue.poll(); // the flow expired
+                continue;
+            }
+            int sent;
+            try {
+                sent = direction == Direction.UP ? scheduled.channel.write(scheduled.datagram)
+                        : scheduled.channel.send(scheduled.datagram, scheduled.destination);
+            } catch (PortUnreachableException e) {
+                queue.poll(); // the server is down, the datagram is dropped
+                stats[direction.ordinal()].unreachable++;
+                logger.fine("Server unreachable, dropping a datagram");
+                continue;
+            }
+            if (sent == 0 && scheduled.datagram.hasRemaining()) {
+                return;
+            }
+            queue.poll();
+            stats[direction.ordinal()].sent++;
+        }
+    }
+
+    private void expireFlows(long now) throws IOException {
+        for (var iterator = flows.values().iterator(); iterator.hasNext(); ) {
+            var flow = iterator.next();
+            if (now - flow.lastActivity > FLOW_TTL) {
+                iterator.remove();
+                flow.upstream.close();
+            }
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage : UDPRelay [options] port server-host server-port");
+        System.out.println("Options (on each direction):");
+        System.out.println("  -loss p       probability to drop a datagram (default 0)");
+        System.out.println("  -dup p        probability to duplicate a datagram (default 0)");
+        System.out.println("  -reorder p    probability to hold a datagram back by reorder-delay (default 0)");
+        System.out.println("  -delay ms     fixed delay (default 0)");
+        System.out.println("  -jitter ms    random delay added to the fixed delay, uniform in [0, jitter] (default 0)");
+        System.out.println("  -reorder-delay ms  (default 10)");
+        System.out.println("  -bandwidth b  bytes per second, 0 for unlimited (default 0)");
+        System.out.println("  -seed n       seed of the random choices (default 0)");
+    }
+
+    public static void main(String[] args) throws IOException {
+        double loss = 0, duplication = 0, reordering = 0;
+        long delay = 0, jitter = 0, reorderDelay = 10, bandwidth = 0, seed = 0;
+        var i = 0;
+        try {
+            for (; i < args.length - 3; i += 2) {
+                var value = args[i + 1];
+                switch (args[i]) {
+                    case "-loss" -> loss = Double.parseDouble(value);
+                    case "-dup" -> duplication = Double.parseDouble(value);
+                    case "-reorder" -> reordering = Double.parseDouble(value);
+                    case "-delay" -> delay = Long.parseLong(value);
+                    case "-jitter" -> jitter = Long.parseLong(value);
+                    case "-reorder-delay" -> reorderDelay = Long.parseLong(value);
+                    case "-bandwidth" -> bandwidth = Long.parseLong(value);
+                    case "-seed" -> seed = Long.parseLong(value);
+                    default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length - i != 3) {
+                usage();
+                return;
+            }
+            var impairments = new Impairments(loss, duplication, reordering, TimeUnit.MILLISECONDS.toNanos(delay),
+                    TimeUnit.MILLISECONDS.toNanos(jitter), TimeUnit.MILLISECONDS.toNanos(reorderDelay), bandwidth,
+                    seed);
+            var server = new InetSocketAddress(args[i + 1], Integer.parseInt(args[i + 2]));
+            new UDPRelay(Integer.parseInt(args[i]), server, impairments).serve();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage() == null ? "Invalid option value" : e.getMessage());
+            usage();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package fr.upem.net.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Client side of a request/response UDP protocol, as seen by the load
+ * generator. Each request is identified by a long id chosen by the generator.
+ */
+interface UdpProtocol {
+    /**
+     * Writes the datagram of request id in buffer (write-mode).
+     */
+    void putRequest(ByteBuffer buffer, long id);
+
+    /**
+     * @param buffer a received datagram, in read-mode
+     * @return the id of the request answered by this datagram, or -1 if the
+     *         datagram does not answer a request
+     */
+    long responseId(ByteBuffer buffer);
+
+    static UdpProtocol of(String name, int payload) {
+        return switch (name) {
+            case "idupper" -> new IdUpperCaseProtocol(payload);
+            case "longsumudp" -> new LongSumUDPProtocol(payload);
+            case "chatudp" -> new ChatUDPProtocol(payload);
+            default -> throw new IllegalArgumentException("Unknown UDP protocol " + name);
+        };
+    }
+}